@@ -83,7 +83,7 @@ public class CallingCodeInfo {
         }
 
         if (intlPrefix != null && str.length() != 0) {
-            return String.format("%s %s", intlPrefix, str);
+            return intlPrefix + " " + str;
         }
 
         return orig;
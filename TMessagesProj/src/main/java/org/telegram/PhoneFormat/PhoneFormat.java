@@ -33,7 +33,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class PhoneFormat {
     public byte[] data;
@@ -46,6 +48,21 @@ public class PhoneFormat {
     public HashMap<String, CallingCodeInfo> callingCodeData;
     public HashMap<String, String> countryCallingCode;
 
+    private final static int FORMAT_CACHE_SIZE = 256;
+
+    private static class CallingCodeNode {
+        public CallingCodeNode[] children = new CallingCodeNode[10];
+        public String callingCode;
+    }
+
+    private CallingCodeNode callingCodeRoot = new CallingCodeNode();
+    private final LinkedHashMap<String, String> formatCache = new LinkedHashMap<String, String>(FORMAT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > FORMAT_CACHE_SIZE;
+        }
+    };
+
     private static volatile PhoneFormat Instance = null;
     public static PhoneFormat getInstance() {
         PhoneFormat localInstance = Instance;
@@ -61,28 +78,35 @@ public class PhoneFormat {
     }
 
     public static String strip(String str) {
-        StringBuilder res = new StringBuilder(str);
-        String phoneChars = "0123456789+*#";
-        for (int i = res.length() - 1; i >= 0; i--) {
-            if (!phoneChars.contains(res.substring(i, i + 1))) {
-                res.deleteCharAt(i);
+        StringBuilder res = null;
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (ch >= '0' && ch <= '9' || ch == '+' || ch == '*' || ch == '#') {
+                if (res != null) {
+                    res.append(ch);
+                }
+            } else if (res == null) {
+                res = new StringBuilder(str.length());
+                res.append(str, 0, i);
             }
         }
-        return res.toString();
+        return res == null ? str : res.toString();
     }
 
     public static String stripExceptNumbers(String str, boolean includePlus) {
-        StringBuilder res = new StringBuilder(str);
-        String phoneChars = "0123456789";
-        if (includePlus) {
-            phoneChars += "+";
-        }
-        for (int i = res.length() - 1; i >= 0; i--) {
-            if (!phoneChars.contains(res.substring(i, i + 1))) {
-                res.deleteCharAt(i);
+        StringBuilder res = null;
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (ch >= '0' && ch <= '9' || includePlus && ch == '+') {
+                if (res != null) {
+                    res.append(ch);
+                }
+            } else if (res == null) {
+                res = new StringBuilder(str.length());
+                res.append(str, 0, i);
             }
         }
-        return res.toString();
+        return res == null ? str : res.toString();
     }
 
     public static String stripExceptNumbers(String str) {
@@ -163,25 +187,40 @@ public class PhoneFormat {
     }
 
     public CallingCodeInfo findCallingCodeInfo(String str) {
-        CallingCodeInfo res = null;
-        for (int i = 0; i < 3; i++) {
-            if (i < str.length()) {
-                res = callingCodeInfo(str.substring(0, i + 1));
+        CallingCodeNode node = callingCodeRoot;
+        for (int i = 0; i < 3 && i < str.length(); i++) {
+            int digit = str.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || (node = node.children[digit]) == null) {
+                break;
+            }
+            if (node.callingCode != null) {
+                CallingCodeInfo res = callingCodeInfo(node.callingCode);
                 if (res != null) {
-                    break;
+                    return res;
                 }
-            } else {
-                break;
             }
         }
-
-        return res;
+        return null;
     }
 
     public String format(String orig) {
         if (!initialzed) {
             return orig;
         }
+        String result;
+        synchronized (formatCache) {
+            result = formatCache.get(orig);
+        }
+        if (result == null) {
+            result = formatInternal(orig);
+            synchronized (formatCache) {
+                formatCache.put(orig, result);
+            }
+        }
+        return result;
+    }
+
+    private String formatInternal(String orig) {
         String str = strip(orig);
 
         if (str.startsWith("+")) {
@@ -211,7 +250,7 @@ public class PhoneFormat {
                 if (phone.length() == 0) {
                     return accessCode;
                 } else {
-                    return String.format("%s %s", accessCode, phone);
+                    return accessCode + " " + phone;
                 }
             } else {
                 return info.format(str);
@@ -252,8 +291,7 @@ public class PhoneFormat {
 
     int value32(int offset) {
         if (offset + 4 <= data.length) {
-            buffer.position(offset);
-            return buffer.getInt();
+            return buffer.getInt(offset);
         } else {
             return 0;
         }
@@ -261,8 +299,7 @@ public class PhoneFormat {
 
     short value16(int offset) {
         if (offset + 2 <= data.length) {
-            buffer.position(offset);
-            return buffer.getShort();
+            return buffer.getShort(offset);
         } else {
             return 0;
         }
@@ -285,7 +322,7 @@ public class PhoneFormat {
         }
     }
 
-    public CallingCodeInfo callingCodeInfo(String callingCode) {
+    public synchronized CallingCodeInfo callingCodeInfo(String callingCode) {
         CallingCodeInfo res = callingCodeData.get(callingCode);
         if (res == null) {
             Integer num = callingCodeOffsets.get(callingCode);
@@ -355,7 +392,7 @@ public class PhoneFormat {
                         int openPos = rule.format.indexOf("[[");
                         if (openPos != -1) {
                             int closePos = rule.format.indexOf("]]");
-                            rule.format = String.format("%s%s", rule.format.substring(0, openPos), rule.format.substring(closePos + 2));
+                            rule.format = rule.format.substring(0, openPos) + rule.format.substring(closePos + 2);
                         }
 
                         rules.add(rule);
@@ -377,6 +414,21 @@ public class PhoneFormat {
         return res;
     }
 
+    private void addCallingCode(String callingCode) {
+        CallingCodeNode node = callingCodeRoot;
+        for (int a = 0; a < callingCode.length(); a++) {
+            int digit = callingCode.charAt(a) - '0';
+            if (digit < 0 || digit > 9) {
+                return;
+            }
+            if (node.children[digit] == null) {
+                node.children[digit] = new CallingCodeNode();
+            }
+            node = node.children[digit];
+        }
+        node.callingCode = callingCode;
+    }
+
     public void parseDataHeader() {
         int count = value32(0);
         int base = count * 12 + 4;
@@ -396,6 +448,7 @@ public class PhoneFormat {
             countryCallingCode.put(country, callingCode);
 
             callingCodeOffsets.put(callingCode, offset);
+            addCallingCode(callingCode);
             ArrayList<String> countries = callingCodeCountries.get(callingCode);
             if (countries == null) {
                 countries = new ArrayList<>();
@@ -60,7 +60,7 @@ public class PhoneRule {
                     break;
                 case '#':
                     if (spot < str.length()) {
-                        res.append(str.substring(spot, spot + 1));
+                        res.append(str.charAt(spot));
                         spot++;
                     } else if (hasOpen) {
                         res.append(" ");
@@ -73,7 +73,7 @@ public class PhoneRule {
                 default:
                     if (!(ch == ' ' && i > 0 && ((format.charAt(i - 1) == 'n' && trunkPrefix == null) || (format.charAt(i - 1) == 'c' && intlPrefix == null)))) {
                         if (spot < str.length() || (hasOpen && ch == ')')) {
-                            res.append(format.substring(i, i + 1));
+                            res.append(ch);
                             if (ch == ')') {
                                 hasOpen = false;
                             }
@@ -83,7 +83,7 @@ public class PhoneRule {
             }
         }
         if (intlPrefix != null && !hadC) {
-            res.insert(0, String.format("%s ", intlPrefix));
+            res.insert(0, intlPrefix + " ");
         } else if (trunkPrefix != null && !hadN) {
             res.insert(0, trunkPrefix);
         }
@@ -25,26 +25,32 @@
 package org.telegram.PhoneFormat;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class RuleSet {
     public int matchLen;
     public ArrayList<PhoneRule> rules = new ArrayList<PhoneRule>();
     public boolean hasRuleWithIntlPrefix;
     public boolean hasRuleWithTrunkPrefix;
-    public static Pattern pattern = Pattern.compile("[0-9]+");
+
+    //value of the first run of digits within the first matchLen characters
+    private int matchValue(String str) {
+        int val = 0;
+        boolean found = false;
+        for (int a = 0; a < matchLen; a++) {
+            char ch = str.charAt(a);
+            if (ch >= '0' && ch <= '9') {
+                val = val * 10 + (ch - '0');
+                found = true;
+            } else if (found) {
+                break;
+            }
+        }
+        return val;
+    }
 
     String format(String str, String intlPrefix, String trunkPrefix, boolean prefixRequired) {
         if (str.length() >= matchLen) {
-            String begin = str.substring(0, matchLen);
-
-            int val = 0;
-            Matcher matcher = pattern.matcher(begin);
-            if (matcher.find()) {
-                String num = matcher.group(0);
-                val = Integer.parseInt(num);
-            }
+            int val = matchValue(str);
 
             for (PhoneRule rule : rules) {
                 if (val >= rule.minVal && val <= rule.maxVal && str.length() <= rule.maxLen) {
@@ -88,13 +94,7 @@ public class RuleSet {
 
     boolean isValid(String str, String intlPrefix, String trunkPrefix, boolean prefixRequired) {
         if (str.length() >= matchLen) {
-            String begin = str.substring(0, matchLen);
-            int val = 0;
-            Matcher matcher = pattern.matcher(begin);
-            if (matcher.find()) {
-                String num = matcher.group(0);
-                val = Integer.parseInt(num);
-            }
+            int val = matchValue(str);
 
             for (PhoneRule rule : rules) {
                 if (val >= rule.minVal && val <= rule.maxVal && str.length() == rule.maxLen) {
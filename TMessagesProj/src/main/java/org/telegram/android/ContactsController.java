@@ -17,6 +17,7 @@ import android.content.ContentResolver;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.util.SparseArray;
@@ -37,6 +38,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -50,7 +52,8 @@ public class ContactsController {
     private final Object observerLock = new Object();
     public boolean contactsLoaded = false;
     private boolean contactsBookLoaded = false;
-    private String lastContactsVersions = "";
+    private long lastContactsVersionsHash = 0;
+    private final HashMap<Integer, Integer> cachedPhoneBookHashes = new HashMap<>();
     private ArrayList<Integer> delayedContactsUpdate = new ArrayList<>();
     private String inviteText;
     private boolean updatingInviteText = false;
@@ -154,7 +157,10 @@ public class ContactsController {
         contactsSyncInProgress = false;
         contactsLoaded = false;
         contactsBookLoaded = false;
-        lastContactsVersions = "";
+        lastContactsVersionsHash = 0;
+        synchronized (cachedPhoneBookHashes) {
+            cachedPhoneBookHashes.clear();
+        }
         loadingDeleteInfo = 0;
         deleteAccountTTL = 0;
         loadingLastSeenInfo = 0;
@@ -266,17 +272,16 @@ public class ContactsController {
             ContentResolver cr = ApplicationLoader.applicationContext.getContentResolver();
             Cursor pCur = null;
             try {
-                pCur = cr.query(ContactsContract.RawContacts.CONTENT_URI, new String[]{ContactsContract.RawContacts.VERSION}, null, null, null);
-                StringBuilder currentVersion = new StringBuilder();
+                pCur = cr.query(ContactsContract.RawContacts.CONTENT_URI, new String[]{ContactsContract.RawContacts._ID, ContactsContract.RawContacts.VERSION}, null, null, null);
+                long newContactsVersionsHash = 17;
                 while (pCur.moveToNext()) {
-                    int col = pCur.getColumnIndex(ContactsContract.RawContacts.VERSION);
-                    currentVersion.append(pCur.getString(col));
+                    newContactsVersionsHash = newContactsVersionsHash * 31 + pCur.getLong(0);
+                    newContactsVersionsHash = newContactsVersionsHash * 31 + pCur.getLong(1);
                 }
-                String newContactsVersion = currentVersion.toString();
-                if (lastContactsVersions.length() != 0 && !lastContactsVersions.equals(newContactsVersion)) {
+                if (lastContactsVersionsHash != 0 && lastContactsVersionsHash != newContactsVersionsHash) {
                     reload = true;
                 }
-                lastContactsVersions = newContactsVersion;
+                lastContactsVersionsHash = newContactsVersionsHash;
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             } finally {
@@ -465,6 +470,269 @@ public class ContactsController {
         return contactsMap;
     }
 
+    private static int getContactHash(Contact contact) {
+        int hash = contact.id;
+        hash = hash * 31 + (contact.first_name != null ? contact.first_name.hashCode() : 0);
+        hash = hash * 31 + (contact.last_name != null ? contact.last_name.hashCode() : 0);
+        hash = hash * 31 + contact.phones.hashCode();
+        hash = hash * 31 + contact.shortPhones.hashCode();
+        hash = hash * 31 + contact.phoneDeleted.hashCode();
+        return hash;
+    }
+
+    private void resetCachedPhoneBookHashes(HashMap<Integer, Contact> contactHashMap) {
+        synchronized (cachedPhoneBookHashes) {
+            cachedPhoneBookHashes.clear();
+            for (HashMap.Entry<Integer, Contact> entry : contactHashMap.entrySet()) {
+                cachedPhoneBookHashes.put(entry.getKey(), getContactHash(entry.getValue()));
+            }
+        }
+    }
+
+    //writes only contacts whose content hash differs from what was last stored, complete books also remove the ones that are gone
+    private void putCachedPhoneBookChanges(HashMap<Integer, Contact> contactsMap, boolean complete) {
+        HashMap<Integer, Contact> changed = new HashMap<>();
+        ArrayList<Integer> removed = new ArrayList<>();
+        synchronized (cachedPhoneBookHashes) {
+            for (HashMap.Entry<Integer, Contact> entry : contactsMap.entrySet()) {
+                int hash = getContactHash(entry.getValue());
+                Integer oldHash = cachedPhoneBookHashes.get(entry.getKey());
+                if (oldHash == null || oldHash != hash) {
+                    changed.put(entry.getKey(), entry.getValue());
+                    cachedPhoneBookHashes.put(entry.getKey(), hash);
+                }
+            }
+            if (complete && cachedPhoneBookHashes.size() > contactsMap.size()) {
+                Iterator<Integer> iterator = cachedPhoneBookHashes.keySet().iterator();
+                while (iterator.hasNext()) {
+                    Integer id = iterator.next();
+                    if (!contactsMap.containsKey(id)) {
+                        removed.add(id);
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        FileLog.e("tmessages", "phone book changes: " + changed.size() + " changed, " + removed.size() + " removed");
+        if (!changed.isEmpty() || !removed.isEmpty()) {
+            MessagesStorage.getInstance().putCachedPhoneBook(changed, removed);
+        }
+    }
+
+    private void finishPhoneBookSync(final HashMap<Integer, Contact> contactsMap, final HashMap<String, Contact> contactsBookShort, final boolean first) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                contactsBookSPhones = contactsBookShort;
+                contactsBook = contactsMap;
+                contactsSyncInProgress = false;
+                contactsBookLoaded = true;
+                if (first) {
+                    contactsLoaded = true;
+                }
+                if (!delayedContactsUpdate.isEmpty() && contactsLoaded && contactsBookLoaded) {
+                    applyContactsUpdates(delayedContactsUpdate, null, null, null);
+                    delayedContactsUpdate.clear();
+                }
+            }
+        });
+    }
+
+    private static class ImportBatch {
+        public ArrayList<TLRPC.TL_inputPhoneContact> contacts;
+        public int retryCount;
+        public int floodWaitCount;
+    }
+
+    //sends contacts.importContacts in batches, shrinking batches and concurrency on flood waits and slow responses
+    //and growing them back while the server answers fast, every imported batch is written to the cached phone book
+    //right away so an interrupted sync does not import it again
+    private class ContactsImporter {
+        private final static int MAX_BATCH_SIZE = 500;
+        private final static int MIN_BATCH_SIZE = 50;
+        private final static int MAX_CONCURRENT_BATCHES = 3;
+        private final static int MAX_RETRIES = 3;
+        private final static int MAX_FLOOD_WAITS = 6;
+        private final static long FAST_RESPONSE_TIME = 1500;
+        private final static long SLOW_RESPONSE_TIME = 5000;
+
+        private ArrayList<TLRPC.TL_inputPhoneContact> toImport;
+        private HashMap<Integer, Contact> contactsMap;
+        private HashMap<String, Contact> contactsBookShort;
+        private boolean first;
+
+        private ArrayList<ImportBatch> retryBatches = new ArrayList<>();
+        private int position = 0;
+        private int batchSize = MAX_BATCH_SIZE;
+        private int concurrentBatches = 1;
+        private int inFlight = 0;
+        private long resumeTime = 0;
+        private boolean finished = false;
+        private boolean failed = false;
+
+        private Runnable resumeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                scheduleNext();
+            }
+        };
+
+        public ContactsImporter(ArrayList<TLRPC.TL_inputPhoneContact> toImport, HashMap<Integer, Contact> contactsMap, HashMap<String, Contact> contactsBookShort, boolean first) {
+            this.toImport = toImport;
+            this.contactsMap = contactsMap;
+            this.contactsBookShort = contactsBookShort;
+            this.first = first;
+        }
+
+        public void start() {
+            scheduleNext();
+        }
+
+        private void scheduleNext() {
+            ArrayList<ImportBatch> toSend = new ArrayList<>();
+            boolean done = false;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                long remaining = resumeTime - SystemClock.elapsedRealtime();
+                if (remaining > 0) {
+                    Utilities.globalQueue.cancelRunnable(resumeRunnable);
+                    Utilities.globalQueue.postRunnable(resumeRunnable, remaining);
+                    return;
+                }
+                while (inFlight + toSend.size() < concurrentBatches) {
+                    ImportBatch batch;
+                    if (!retryBatches.isEmpty()) {
+                        batch = retryBatches.remove(0);
+                    } else if (position < toImport.size()) {
+                        int end = Math.min(position + batchSize, toImport.size());
+                        batch = new ImportBatch();
+                        batch.contacts = new ArrayList<>(toImport.subList(position, end));
+                        position = end;
+                    } else {
+                        break;
+                    }
+                    toSend.add(batch);
+                }
+                inFlight += toSend.size();
+                if (inFlight == 0) {
+                    finished = done = true;
+                }
+            }
+            for (ImportBatch batch : toSend) {
+                sendBatch(batch);
+            }
+            if (done) {
+                FileLog.e("tmessages", "contacts import finished");
+                if (!failed && !contactsMap.isEmpty()) {
+                    putCachedPhoneBookChanges(contactsMap, true);
+                }
+                finishPhoneBookSync(contactsMap, contactsBookShort, first);
+            }
+        }
+
+        private void sendBatch(final ImportBatch batch) {
+            TLRPC.TL_contacts_importContacts req = new TLRPC.TL_contacts_importContacts();
+            req.contacts = batch.contacts;
+            req.replace = false;
+            final long startTime = System.currentTimeMillis();
+            ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
+                @Override
+                public void run(TLObject response, TLRPC.TL_error error) {
+                    long responseTime = System.currentTimeMillis() - startTime;
+                    if (error == null) {
+                        FileLog.e("tmessages", "contacts imported " + batch.contacts.size() + " in " + responseTime + " ms");
+                        TLRPC.TL_contacts_importedContacts res = (TLRPC.TL_contacts_importedContacts)response;
+                        MessagesStorage.getInstance().putUsersAndChats(res.users, null, true, true);
+                        ArrayList<TLRPC.TL_contact> cArr = new ArrayList<>();
+                        for (TLRPC.TL_importedContact c : res.imported) {
+                            TLRPC.TL_contact contact = new TLRPC.TL_contact();
+                            contact.user_id = c.user_id;
+                            cArr.add(contact);
+                        }
+                        processLoadedContacts(cArr, res.users, 2);
+                        checkpointBatch(batch);
+                        onBatchSucceeded(responseTime);
+                    } else {
+                        FileLog.e("tmessages", "import contacts error " + error.text);
+                        onBatchFailed(batch, error);
+                    }
+                    scheduleNext();
+                }
+            }, true, RPCRequest.RPCRequestClassGeneric | RPCRequest.RPCRequestClassFailOnServerErrors | RPCRequest.RPCRequestClassCanCompress);
+        }
+
+        private void checkpointBatch(ImportBatch batch) {
+            HashMap<Integer, Contact> imported = new HashMap<>();
+            for (TLRPC.TL_inputPhoneContact c : batch.contacts) {
+                int id = (int) c.client_id;
+                Contact contact = contactsMap.get(id);
+                if (contact != null) {
+                    imported.put(id, contact);
+                }
+            }
+            if (!imported.isEmpty()) {
+                putCachedPhoneBookChanges(imported, false);
+            }
+        }
+
+        private synchronized void onBatchSucceeded(long responseTime) {
+            inFlight--;
+            if (responseTime < FAST_RESPONSE_TIME) {
+                batchSize = Math.min(MAX_BATCH_SIZE, batchSize * 2);
+                concurrentBatches = Math.min(MAX_CONCURRENT_BATCHES, concurrentBatches + 1);
+            } else if (responseTime > SLOW_RESPONSE_TIME) {
+                concurrentBatches = 1;
+            }
+        }
+
+        private void onBatchFailed(ImportBatch batch, TLRPC.TL_error error) {
+            long delay = 0;
+            synchronized (this) {
+                inFlight--;
+                if (error.code == 420 || error.code == 500 || error.code < 0) {
+                    if (error.code == 420 && error.text != null && error.text.startsWith("FLOOD_WAIT_")) {
+                        batch.floodWaitCount++;
+                        try {
+                            delay = Integer.parseInt(error.text.substring(11)) * 1000L;
+                        } catch (Exception e) {
+                            delay = 2000;
+                        }
+                    } else {
+                        batch.retryCount++;
+                        delay = 1000L << batch.retryCount;
+                    }
+                    batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+                    concurrentBatches = 1;
+                    if (batch.retryCount <= MAX_RETRIES && batch.floodWaitCount <= MAX_FLOOD_WAITS) {
+                        int insertPosition = 0;
+                        for (int a = 0; a < batch.contacts.size(); a += batchSize) {
+                            ImportBatch part = new ImportBatch();
+                            part.contacts = new ArrayList<>(batch.contacts.subList(a, Math.min(a + batchSize, batch.contacts.size())));
+                            part.retryCount = batch.retryCount;
+                            part.floodWaitCount = batch.floodWaitCount;
+                            retryBatches.add(insertPosition++, part);
+                        }
+                    } else {
+                        FileLog.e("tmessages", "drop contacts import batch after " + batch.retryCount + " retries and " + batch.floodWaitCount + " flood waits");
+                        failed = true;
+                    }
+                    //a shorter backoff must not cut an earlier flood wait short
+                    long now = SystemClock.elapsedRealtime();
+                    resumeTime = Math.max(resumeTime, now + delay);
+                    delay = resumeTime - now;
+                } else {
+                    failed = true;
+                }
+            }
+            if (delay != 0) {
+                Utilities.globalQueue.cancelRunnable(resumeRunnable);
+                Utilities.globalQueue.postRunnable(resumeRunnable, delay);
+            }
+        }
+    }
+
     public HashMap<Integer, Contact> getContactsCopy(HashMap<Integer, Contact> original) {
         HashMap<Integer, Contact> ret = new HashMap<>();
         for (HashMap.Entry<Integer, Contact> entry : original.entrySet()) {
@@ -514,6 +782,10 @@ public class ContactsController {
                     }
                 }*/
 
+                if (first) {
+                    resetCachedPhoneBookHashes(contactHashMap);
+                }
+
                 boolean request = requ;
                 if (request && first) {
                     if (UserConfig.importHash != null && UserConfig.importHash.length() != 0 || UserConfig.contactsVersion != 1) {
@@ -625,7 +897,7 @@ public class ContactsController {
                     }
                     if (request && !contactHashMap.isEmpty() && !contactsMap.isEmpty()) {
                         if (toImport.isEmpty()) {
-                            MessagesStorage.getInstance().putCachedPhoneBook(contactsMap);
+                            putCachedPhoneBookChanges(contactsMap, true);
                         }
                         if (!disableDeletion && !contactHashMap.isEmpty()) {
                             AndroidUtilities.runOnUIThread(new Runnable() {
@@ -713,77 +985,9 @@ public class ContactsController {
 //                                FileLog.e("tmessages", "add contact " + contact.first_name + " " + contact.last_name + " " + contact.phone);
 //                            }
                         }
-                        final int count = (int)Math.ceil(toImport.size() / 500.0f);
-                        for (int a = 0; a < count; a++) {
-                            ArrayList<TLRPC.TL_inputPhoneContact> finalToImport = new ArrayList<>();
-                            finalToImport.addAll(toImport.subList(a * 500, Math.min((a + 1) * 500, toImport.size())));
-                            TLRPC.TL_contacts_importContacts req = new TLRPC.TL_contacts_importContacts();
-                            req.contacts = finalToImport;
-                            req.replace = false;
-                            final boolean isLastQuery = a == count - 1;
-                            ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
-                                @Override
-                                public void run(TLObject response, TLRPC.TL_error error) {
-                                    if (error == null) {
-                                        FileLog.e("tmessages", "contacts imported");
-                                        if (isLastQuery && !contactsMap.isEmpty()) {
-                                            MessagesStorage.getInstance().putCachedPhoneBook(contactsMap);
-                                        }
-                                        TLRPC.TL_contacts_importedContacts res = (TLRPC.TL_contacts_importedContacts)response;
-                                        if (BuildVars.DEBUG_VERSION) {
-//                                            for (TLRPC.User user : res.users) {
-//                                                FileLog.e("tmessages", "received user " + user.first_name + " " + user.last_name + " " + user.phone);
-//                                            }
-                                        }
-                                        MessagesStorage.getInstance().putUsersAndChats(res.users, null, true, true);
-                                        ArrayList<TLRPC.TL_contact> cArr = new ArrayList<>();
-                                        for (TLRPC.TL_importedContact c : res.imported) {
-                                            TLRPC.TL_contact contact = new TLRPC.TL_contact();
-                                            contact.user_id = c.user_id;
-                                            cArr.add(contact);
-                                        }
-                                        processLoadedContacts(cArr, res.users, 2);
-                                    } else {
-                                        FileLog.e("tmessages", "import contacts error " + error.text);
-                                    }
-                                    if (isLastQuery) {
-                                        Utilities.stageQueue.postRunnable(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                contactsBookSPhones = contactsBookShort;
-                                                contactsBook = contactsMap;
-                                                contactsSyncInProgress = false;
-                                                contactsBookLoaded = true;
-                                                if (first) {
-                                                    contactsLoaded = true;
-                                                }
-                                                if (!delayedContactsUpdate.isEmpty() && contactsLoaded && contactsBookLoaded) {
-                                                    applyContactsUpdates(delayedContactsUpdate, null, null, null);
-                                                    delayedContactsUpdate.clear();
-                                                }
-                                            }
-                                        });
-                                    }
-                                }
-                            }, true, RPCRequest.RPCRequestClassGeneric | RPCRequest.RPCRequestClassFailOnServerErrors | RPCRequest.RPCRequestClassCanCompress);
-                        }
+                        new ContactsImporter(toImport, contactsMap, contactsBookShort, first).start();
                     } else {
-                        Utilities.stageQueue.postRunnable(new Runnable() {
-                            @Override
-                            public void run() {
-                                contactsBookSPhones = contactsBookShort;
-                                contactsBook = contactsMap;
-                                contactsSyncInProgress = false;
-                                contactsBookLoaded = true;
-                                if (first) {
-                                    contactsLoaded = true;
-                                }
-                                if (!delayedContactsUpdate.isEmpty() && contactsLoaded && contactsBookLoaded) {
-                                    applyContactsUpdates(delayedContactsUpdate, null, null, null);
-                                    delayedContactsUpdate.clear();
-                                }
-                            }
-                        });
+                        finishPhoneBookSync(contactsMap, contactsBookShort, first);
                         AndroidUtilities.runOnUIThread(new Runnable() {
                             @Override
                             public void run() {
@@ -793,24 +997,9 @@ public class ContactsController {
                         });
                     }
                 } else {
-                    Utilities.stageQueue.postRunnable(new Runnable() {
-                        @Override
-                        public void run() {
-                            contactsBookSPhones = contactsBookShort;
-                            contactsBook = contactsMap;
-                            contactsSyncInProgress = false;
-                            contactsBookLoaded = true;
-                            if (first) {
-                                contactsLoaded = true;
-                            }
-                            if (!delayedContactsUpdate.isEmpty() && contactsLoaded && contactsBookLoaded) {
-                                applyContactsUpdates(delayedContactsUpdate, null, null, null);
-                                delayedContactsUpdate.clear();
-                            }
-                        }
-                    });
+                    finishPhoneBookSync(contactsMap, contactsBookShort, first);
                     if (!contactsMap.isEmpty()) {
-                        MessagesStorage.getInstance().putCachedPhoneBook(contactsMap);
+                        putCachedPhoneBookChanges(contactsMap, true);
                     }
                 }
             }
@@ -10,6 +10,7 @@ package org.telegram.android;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -33,7 +34,9 @@ import org.telegram.messenger.Utilities;
 import org.telegram.messenger.ApplicationLoader;
 
 public class Emoji {
-	private static HashMap<Long, DrawableInfo> rects = new HashMap<>();
+	private static long[] rectCodes;
+	private static DrawableInfo[] rectInfos;
+	private static boolean[] emojiCharsTable;
     public static HashMap<Character, String> subSB = new HashMap<>();
 	private static int drawImgSize, bigImgSize;
 	private static boolean inited = false;
@@ -210,12 +213,28 @@ public class Emoji {
             bigImgSize = AndroidUtilities.dp(30);
         }
 
+		HashMap<Long, DrawableInfo> rects = new HashMap<>();
 		for (int j = 1; j < data.length; j++) {
 			for (int i = 0; i < data[j].length; i++) {
                 Rect rect = new Rect((i % cols[j - 1]) * emojiFullSize, (i / cols[j - 1]) * emojiFullSize, (i % cols[j - 1] + 1) * emojiFullSize, (i / cols[j - 1] + 1) * emojiFullSize);
 				rects.put(data[j][i], new DrawableInfo(rect, (byte)(j - 1)));
 			}
 		}
+        //primitive sorted table, looked up by binary search without boxing the code on every char
+        rectCodes = new long[rects.size()];
+        int a = 0;
+        for (Long code : rects.keySet()) {
+            rectCodes[a++] = code;
+        }
+        Arrays.sort(rectCodes);
+        rectInfos = new DrawableInfo[rectCodes.length];
+        for (a = 0; a < rectCodes.length; a++) {
+            rectInfos[a] = rects.get(rectCodes[a]);
+        }
+        emojiCharsTable = new boolean[emojiChars[emojiChars.length - 1] + 1];
+        for (char c : emojiChars) {
+            emojiCharsTable[c] = true;
+        }
 		placeholderPaint = new Paint();
 		placeholderPaint.setColor(0x00000000);
 
@@ -696,16 +715,27 @@ public class Emoji {
         }
 
         String s = cs.toString();
-
+        StringBuilder builder = null;
+        int last = 0;
         for (int i = 0; i < s.length(); i++) {
             char c = s.charAt(i);
-            CharSequence newCode = Emoji.subSB.get(c);
+            if (c < 0xE000 || c > 0xF8FF) {
+                continue;
+            }
+            String newCode = Emoji.subSB.get(c);
             if (newCode != null) {
-                s = s.replace(String.valueOf(c), newCode);
+                if (builder == null) {
+                    builder = new StringBuilder(s.length() + 16);
+                }
+                builder.append(s, last, i).append(newCode);
+                last = i + 1;
             }
         }
-
-        return s;
+        if (builder == null) {
+            return s;
+        }
+        builder.append(s, last, s.length());
+        return builder.toString();
     }
     
 	private static void loadEmoji(final int page) {
@@ -790,7 +820,8 @@ public class Emoji {
 	}
 	
 	public static EmojiDrawable getEmojiDrawable(long code) {
-		DrawableInfo info = rects.get(code);
+		int index = Arrays.binarySearch(rectCodes, code);
+		DrawableInfo info = index >= 0 ? rectInfos[index] : null;
 		if (info == null) {
             FileLog.e("tmessages", "No emoji drawable for code " + String.format("%016X", code));
 			return null;
@@ -878,9 +909,14 @@ public class Emoji {
 		}
 	}
 
-    private static boolean inArray(char c, char[] a) {
-        for (char cc : a) {
-            if (cc == c) {
+    private static boolean isEmojiChar(char c) {
+        return c < emojiCharsTable.length && emojiCharsTable[c];
+    }
+
+    private static boolean mayContainEmoji(CharSequence cs) {
+        for (int i = 0; i < cs.length(); i++) {
+            char c = cs.charAt(i);
+            if (c == 0xD83C || c == 0xD83D || c == 0x20E3 || isEmojiChar(c)) {
                 return true;
             }
         }
@@ -901,6 +937,10 @@ public class Emoji {
         } else {
             s = Spannable.Factory.getInstance().newSpannable(cs);
         }
+        //callers linkify the result, so it has to stay a Spannable even when there is nothing to replace
+        if (!mayContainEmoji(cs)) {
+            return s;
+        }
         long buf = 0;
         int emojiCount = 0;
         try {
@@ -939,7 +979,7 @@ public class Emoji {
                             buf = 0;
                         }
                     }
-                } else if (inArray(c, emojiChars)) {
+                } else if (isEmojiChar(c)) {
                     EmojiDrawable d = Emoji.getEmojiDrawable(c);
                     if (d != null) {
                         EmojiSpan span = new EmojiSpan(d, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
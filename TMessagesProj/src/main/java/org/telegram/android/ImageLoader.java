@@ -1454,7 +1454,7 @@ public class ImageLoader {
                                     TLRPC.FileLocation location = (TLRPC.FileLocation) imageLocation;
                                     FileLoader.getInstance().loadFile(location, size, size == 0 || location.key != null || cacheOnly);
                                 } else if (imageLocation instanceof TLRPC.Document) {
-                                    FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, true, true);
+                                    FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, FileLoader.PRIORITY_VISIBLE, true);
                                 }
                             } else {
                                 String file = Utilities.MD5(httpLocation);
@@ -1867,8 +1867,7 @@ public class ImageLoader {
         TLRPC.TL_fileLocation location = new TLRPC.TL_fileLocation();
         location.volume_id = Integer.MIN_VALUE;
         location.dc_id = Integer.MIN_VALUE;
-        location.local_id = UserConfig.lastLocalId;
-        UserConfig.lastLocalId--;
+        location.local_id = UserConfig.getNewLocalId();
         TLRPC.PhotoSize size = new TLRPC.TL_photoSize();
         size.location = location;
         size.w = scaledBitmap.getWidth();
@@ -1888,14 +1887,15 @@ public class ImageLoader {
         String fileName = location.volume_id + "_" + location.local_id + ".jpg";
         final File cacheFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), fileName);
         FileOutputStream stream = new FileOutputStream(cacheFile);
-        scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
         if (cache) {
             ByteArrayOutputStream stream2 = new ByteArrayOutputStream();
             scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream2);
             size.bytes = stream2.toByteArray();
             size.size = size.bytes.length;
             stream2.close();
+            stream.write(size.bytes);
         } else {
+            scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
             size.size = (int)stream.getChannel().size();
         }
         stream.close();
@@ -1987,8 +1987,7 @@ public class ImageLoader {
                 photoSize.location = new TLRPC.TL_fileLocation();
                 photoSize.location.volume_id = Integer.MIN_VALUE;
                 photoSize.location.dc_id = Integer.MIN_VALUE;
-                photoSize.location.local_id = UserConfig.lastLocalId;
-                UserConfig.lastLocalId--;
+                photoSize.location.local_id = UserConfig.getNewLocalId();
             }
             File file = FileLoader.getPathToAttach(photoSize, true);
             if (!file.exists()) {
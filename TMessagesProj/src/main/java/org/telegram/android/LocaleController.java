@@ -33,7 +33,6 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -70,7 +69,26 @@ public class LocaleController {
     private String languageOverride;
     private boolean changingConfiguration = false;
 
-    private HashMap<String, String> translitChars;
+    private String[][] translitTable;
+
+    private final static int FORMAT_CACHE_SIZE = 500;
+    private static final Object formatSync = new Object();
+    private static long cacheMinute;
+    private static long todayStart;
+    private static long tomorrowStart;
+    private static long yesterdayStart;
+    private static long weekStart;
+    private static long yearStart;
+    private static long nextYearStart;
+    private static HashMap<Long, String> formatDateCache = new HashMap<>();
+    private static HashMap<Long, String> formatDateOnlineCache = new HashMap<>();
+    private static HashMap<Long, String> messageListDateCache = new HashMap<>();
+    private HashMap<String, PluralKeys> pluralKeys = new HashMap<>();
+
+    private static class PluralKeys {
+        public String[] params = new String[6];
+        public int[] resourceIds = new int[6];
+    }
 
     private class TimeZoneChangedReceiver extends BroadcastReceiver {
         @Override
@@ -629,12 +647,28 @@ public class LocaleController {
     }
 
     public static String formatPluralString(String key, int plural) {
-        if (key == null || key.length() == 0 || getInstance().currentPluralRules == null) {
+        LocaleController controller = getInstance();
+        if (key == null || key.length() == 0 || controller.currentPluralRules == null) {
             return "LOC_ERR:" + key;
         }
-        String param = getInstance().stringForQuantity(getInstance().currentPluralRules.quantityForNumber(plural));
-        param = key + "_" + param;
-        int resourceId = ApplicationLoader.applicationContext.getResources().getIdentifier(param, "string", ApplicationLoader.applicationContext.getPackageName());
+        int quantity = controller.currentPluralRules.quantityForNumber(plural);
+        int index = quantity == QUANTITY_OTHER ? 0 : Integer.numberOfTrailingZeros(quantity) + 1;
+        String param;
+        int resourceId;
+        synchronized (controller.pluralKeys) {
+            PluralKeys keys = controller.pluralKeys.get(key);
+            if (keys == null) {
+                keys = new PluralKeys();
+                controller.pluralKeys.put(key, keys);
+            }
+            param = keys.params[index];
+            if (param == null) {
+                param = key + "_" + controller.stringForQuantity(quantity);
+                keys.resourceIds[index] = ApplicationLoader.applicationContext.getResources().getIdentifier(param, "string", ApplicationLoader.applicationContext.getPackageName());
+                keys.params[index] = param;
+            }
+            resourceId = keys.resourceIds[index];
+        }
         return formatString(param, resourceId, plural);
     }
 
@@ -708,43 +742,90 @@ public class LocaleController {
         return chatFullDate.format(date * 1000);
     }
 
-    public static String formatDate(long date) {
-        Calendar rightNow = Calendar.getInstance();
-        int day = rightNow.get(Calendar.DAY_OF_YEAR);
-        int year = rightNow.get(Calendar.YEAR);
-        rightNow.setTimeInMillis(date * 1000);
-        int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-        int dateYear = rightNow.get(Calendar.YEAR);
+    //formatted dates depend on the current day and minute, so cached values are dropped when either rolls over
+    private static void checkFormatCaches() {
+        long currentTime = System.currentTimeMillis();
+        long minute = currentTime / 60000;
+        if (minute != cacheMinute || formatDateCache.size() > FORMAT_CACHE_SIZE || formatDateOnlineCache.size() > FORMAT_CACHE_SIZE || messageListDateCache.size() > FORMAT_CACHE_SIZE) {
+            cacheMinute = minute;
+            formatDateCache.clear();
+            formatDateOnlineCache.clear();
+            messageListDateCache.clear();
+        }
+        if (currentTime >= tomorrowStart || currentTime < todayStart) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(currentTime);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            todayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_YEAR, 1);
+            tomorrowStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_YEAR, -2);
+            yesterdayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_YEAR, -5);
+            weekStart = calendar.getTimeInMillis();
+            calendar.setTimeInMillis(todayStart);
+            calendar.set(Calendar.DAY_OF_YEAR, 1);
+            yearStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.YEAR, 1);
+            nextYearStart = calendar.getTimeInMillis();
+        }
+    }
 
-        if (dateDay == day && year == dateYear) {
-            return formatterDay.format(new Date(date * 1000));
-        } else if (dateDay + 1 == day && year == dateYear) {
-            return getString("Yesterday", R.string.Yesterday);
-        } else if (year == dateYear) {
-            return formatterMonth.format(new Date(date * 1000));
-        } else {
-            return formatterYear.format(new Date(date * 1000));
+    private static void resetFormatCaches() {
+        synchronized (formatSync) {
+            cacheMinute = 0;
+            todayStart = tomorrowStart = 0;
+            formatDateCache.clear();
+            formatDateOnlineCache.clear();
+            messageListDateCache.clear();
         }
     }
 
-    public static String formatDateOnline(long date) {
-        Calendar rightNow = Calendar.getInstance();
-        int day = rightNow.get(Calendar.DAY_OF_YEAR);
-        int year = rightNow.get(Calendar.YEAR);
-        rightNow.setTimeInMillis(date * 1000);
-        int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-        int dateYear = rightNow.get(Calendar.YEAR);
+    public static String formatDate(long date) {
+        synchronized (formatSync) {
+            checkFormatCaches();
+            String result = formatDateCache.get(date);
+            if (result != null) {
+                return result;
+            }
+            long time = date * 1000;
+            boolean sameYear = time >= yearStart && time < nextYearStart;
+            if (time >= todayStart && time < tomorrowStart) {
+                result = formatterDay.format(time);
+            } else if (time >= yesterdayStart && time < todayStart && sameYear) {
+                result = getString("Yesterday", R.string.Yesterday);
+            } else if (sameYear) {
+                result = formatterMonth.format(time);
+            } else {
+                result = formatterYear.format(time);
+            }
+            formatDateCache.put(date, result);
+            return result;
+        }
+    }
 
-        if (dateDay == day && year == dateYear) {
-            return String.format("%s %s %s", LocaleController.getString("LastSeen", R.string.LastSeen), LocaleController.getString("TodayAt", R.string.TodayAt), formatterDay.format(new Date(date * 1000)));
-        } else if (dateDay + 1 == day && year == dateYear) {
-            return String.format("%s %s %s", LocaleController.getString("LastSeen", R.string.LastSeen), LocaleController.getString("YesterdayAt", R.string.YesterdayAt), formatterDay.format(new Date(date * 1000)));
-        } else if (year == dateYear) {
-            String format = LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, formatterMonth.format(new Date(date * 1000)), formatterDay.format(new Date(date * 1000)));
-            return String.format("%s %s", LocaleController.getString("LastSeenDate", R.string.LastSeenDate), format);
-        } else {
-            String format = LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, formatterYear.format(new Date(date * 1000)), formatterDay.format(new Date(date * 1000)));
-            return String.format("%s %s", LocaleController.getString("LastSeenDate", R.string.LastSeenDate), format);
+    public static String formatDateOnline(long date) {
+        synchronized (formatSync) {
+            checkFormatCaches();
+            String result = formatDateOnlineCache.get(date);
+            if (result != null) {
+                return result;
+            }
+            long time = date * 1000;
+            boolean sameYear = time >= yearStart && time < nextYearStart;
+            if (time >= todayStart && time < tomorrowStart) {
+                result = LocaleController.getString("LastSeen", R.string.LastSeen) + " " + LocaleController.getString("TodayAt", R.string.TodayAt) + " " + formatterDay.format(time);
+            } else if (time >= yesterdayStart && time < todayStart && sameYear) {
+                result = LocaleController.getString("LastSeen", R.string.LastSeen) + " " + LocaleController.getString("YesterdayAt", R.string.YesterdayAt) + " " + formatterDay.format(time);
+            } else {
+                String format = LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, sameYear ? formatterMonth.format(time) : formatterYear.format(time), formatterDay.format(time));
+                result = LocaleController.getString("LastSeenDate", R.string.LastSeenDate) + " " + format;
+            }
+            formatDateOnlineCache.put(date, result);
+            return result;
         }
     }
 
@@ -782,27 +863,31 @@ public class LocaleController {
         formatterWeek = createFormatter(locale, getStringInternal("formatterWeek", R.string.formatterWeek), "EEE");
         formatterMonthYear = createFormatter(locale, getStringInternal("formatterMonthYear", R.string.formatterMonthYear), "MMMM yyyy");
         formatterDay = createFormatter(lang.toLowerCase().equals("ar") || lang.toLowerCase().equals("ko") ? locale : Locale.US, is24HourFormat ? getStringInternal("formatterDay24H", R.string.formatterDay24H) : getStringInternal("formatterDay12H", R.string.formatterDay12H), is24HourFormat ? "HH:mm" : "h:mm a");
+        resetFormatCaches();
+        synchronized (pluralKeys) {
+            pluralKeys.clear();
+        }
     }
 
     public static String stringForMessageListDate(long date) {
-        Calendar rightNow = Calendar.getInstance();
-        int day = rightNow.get(Calendar.DAY_OF_YEAR);
-        int year = rightNow.get(Calendar.YEAR);
-        rightNow.setTimeInMillis(date * 1000);
-        int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-        int dateYear = rightNow.get(Calendar.YEAR);
-
-        if (year != dateYear) {
-            return formatterYear.format(new Date(date * 1000));
-        } else {
-            int dayDiff = dateDay - day;
-            if(dayDiff == 0 || dayDiff == -1 && (int)(System.currentTimeMillis() / 1000) - date < 60 * 60 * 8) {
-                return formatterDay.format(new Date(date * 1000));
-            } else if(dayDiff > -7 && dayDiff <= -1) {
-                return formatterWeek.format(new Date(date * 1000));
+        synchronized (formatSync) {
+            checkFormatCaches();
+            String result = messageListDateCache.get(date);
+            if (result != null) {
+                return result;
+            }
+            long time = date * 1000;
+            if (time < yearStart || time >= nextYearStart) {
+                result = formatterYear.format(time);
+            } else if (time >= todayStart && time < tomorrowStart || time >= yesterdayStart && time < todayStart && (int) (System.currentTimeMillis() / 1000) - date < 60 * 60 * 8) {
+                result = formatterDay.format(time);
+            } else if (time >= weekStart && time < todayStart) {
+                result = formatterWeek.format(time);
             } else {
-                return formatterMonth.format(new Date(date * 1000));
+                result = formatterMonth.format(time);
             }
+            messageListDateCache.put(date, result);
+            return result;
         }
     }
 
@@ -843,9 +928,10 @@ public class LocaleController {
         }
     }
 
-    public String getTranslitString(String src) {
-        if (translitChars == null) {
-            translitChars = new HashMap<>(520);
+    //two-level table indexed by the high and low byte of a char, pages are only allocated where there are mappings
+    private synchronized String[][] getTranslitTable() {
+        if (translitTable == null) {
+            HashMap<String, String> translitChars = new HashMap<>(520);
             translitChars.put("ȼ", "c");
             translitChars.put("ᶇ", "n");
             translitChars.put("ɖ", "d");
@@ -1365,19 +1451,47 @@ public class LocaleController {
             translitChars.put("ꜩ", "tz");
             translitChars.put("ẻ", "e");
             translitChars.put("о", "o");
+
+            String[][] table = new String[256][];
+            for (HashMap.Entry<String, String> entry : translitChars.entrySet()) {
+                String key = entry.getKey();
+                if (key.length() != 1) {
+                    continue;
+                }
+                char ch = key.charAt(0);
+                String[] page = table[ch >> 8];
+                if (page == null) {
+                    page = table[ch >> 8] = new String[256];
+                }
+                page[ch & 0xff] = entry.getValue();
+            }
+            translitTable = table;
         }
-        StringBuilder dst = new StringBuilder(src.length());
+        return translitTable;
+    }
+
+    public String getTranslitString(String src) {
+        if (src == null) {
+            return null;
+        }
+        String[][] table = getTranslitTable();
+        StringBuilder dst = null;
         int len = src.length();
         for (int a = 0; a < len; a++) {
-            String ch = src.substring(a, a + 1);
-            String tch = translitChars.get(ch);
+            char ch = src.charAt(a);
+            String[] page = table[ch >> 8];
+            String tch = page != null ? page[ch & 0xff] : null;
             if (tch != null) {
+                if (dst == null) {
+                    dst = new StringBuilder(len + 8);
+                    dst.append(src, 0, a);
+                }
                 dst.append(tch);
-            } else {
+            } else if (dst != null) {
                 dst.append(ch);
             }
         }
-        return dst.toString();
+        return dst != null ? dst.toString() : src;
     }
 
     abstract public static class PluralRules {
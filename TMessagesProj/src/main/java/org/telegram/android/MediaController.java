@@ -68,6 +68,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -200,6 +203,29 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
     private ArrayList<DownloadObject> documentDownloadQueue = new ArrayList<>();
     private ArrayList<DownloadObject> videoDownloadQueue = new ArrayList<>();
     private HashMap<String, DownloadObject> downloadQueueKeys = new HashMap<>();
+    private HashMap<String, Integer> downloadAttempts = new HashMap<>();
+    private HashMap<String, Long> downloadRetryTimes = new HashMap<>();
+    private HashMap<Integer, Runnable> downloadQueueChecks = new HashMap<>();
+    private final static int MAX_DOWNLOAD_ATTEMPTS = 5;
+    private final static int DOWNLOAD_RETRY_DELAY = 5000;
+
+    public int mobileDataPrefetchBudget = 0;
+    public int wifiPrefetchBudget = 0;
+    public int roamingPrefetchBudget = 0;
+    private final static long PREFETCH_BUDGET_PERIOD = 24 * 60 * 60 * 1000;
+    private final static int PREFETCH_NETWORK_MOBILE = 0;
+    private final static int PREFETCH_NETWORK_WIFI = 1;
+    private final static int PREFETCH_NETWORK_ROAMING = 2;
+    private long prefetchPeriodStart;
+    private long[] prefetchedBytes = new long[3];
+    private long[] pendingPrefetchBytes = new long[3];
+    private HashMap<String, PrefetchRequest> prefetchRequests = new HashMap<>();
+
+    private static class PrefetchRequest {
+        public int networkType;
+        public int size;
+        public File file;
+    }
 
     private boolean saveToGallery = true;
 
@@ -210,9 +236,10 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
     private ArrayList<FileDownloadProgressListener> deleteLaterArray = new ArrayList<>();
     private int lastTag = 0;
 
-    private GifDrawable currentGifDrawable;
-    private MessageObject currentGifMessageObject;
-    private ChatMediaCell currentMediaCell;
+    private final static int MAX_GIF_DRAWABLES = 6;
+    private final static long MAX_GIF_FRAMES_SIZE = 16 * 1024 * 1024;
+    private LinkedHashMap<Integer, GifDrawable> gifDrawables = new LinkedHashMap<>(MAX_GIF_DRAWABLES, 0.75f, true);
+    private HashSet<Integer> gifDrawablesPausedByDetach = new HashSet<>();
 
     private boolean isPaused = false;
     private MediaPlayer audioPlayer = null;
@@ -425,6 +452,13 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         mobileDataDownloadMask = preferences.getInt("mobileDataDownloadMask", AUTODOWNLOAD_MASK_PHOTO | AUTODOWNLOAD_MASK_AUDIO);
         wifiDownloadMask = preferences.getInt("wifiDownloadMask", AUTODOWNLOAD_MASK_PHOTO | AUTODOWNLOAD_MASK_AUDIO);
         roamingDownloadMask = preferences.getInt("roamingDownloadMask", 0);
+        mobileDataPrefetchBudget = preferences.getInt("mobileDataPrefetchBudget", 2 * 1024 * 1024);
+        wifiPrefetchBudget = preferences.getInt("wifiPrefetchBudget", 10 * 1024 * 1024);
+        roamingPrefetchBudget = preferences.getInt("roamingPrefetchBudget", 0);
+        prefetchPeriodStart = preferences.getLong("prefetchPeriodStart", 0);
+        for (int a = 0; a < prefetchedBytes.length; a++) {
+            prefetchedBytes[a] = preferences.getLong("prefetchedBytes" + a, 0);
+        }
         saveToGallery = preferences.getBoolean("save_gallery", false);
 
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.FileDidFailedLoad);
@@ -538,12 +572,11 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
 
     public void cleanup() {
         clenupPlayer(false);
-        if (currentGifDrawable != null) {
-            currentGifDrawable.recycle();
-            currentGifDrawable = null;
+        for (HashMap.Entry<Integer, GifDrawable> entry : gifDrawables.entrySet()) {
+            recycleGifDrawable(entry.getKey(), entry.getValue());
         }
-        currentMediaCell = null;
-        currentGifMessageObject = null;
+        gifDrawables.clear();
+        gifDrawablesPausedByDetach.clear();
         photoDownloadQueue.clear();
         audioDownloadQueue.clear();
         documentDownloadQueue.clear();
@@ -664,11 +697,20 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         } else if (type == AUTODOWNLOAD_MASK_DOCUMENT) {
             queue = documentDownloadQueue;
         }
+        long retryTime = 0;
         for (DownloadObject downloadObject : objects) {
             String path = FileLoader.getAttachFileName(downloadObject.object);
             if (downloadQueueKeys.containsKey(path)) {
                 continue;
             }
+            Long time = downloadRetryTimes.get(path);
+            if (time != null) {
+                if (time > System.currentTimeMillis()) {
+                    retryTime = retryTime == 0 ? time : Math.min(retryTime, time);
+                    continue;
+                }
+                downloadRetryTimes.remove(path);
+            }
 
             boolean added = true;
             if (downloadObject.object instanceof TLRPC.Audio) {
@@ -687,6 +729,25 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                 downloadQueueKeys.put(path, downloadObject);
             }
         }
+        if (queue.isEmpty() && retryTime != 0) {
+            scheduleDownloadQueueCheck(type, retryTime - System.currentTimeMillis());
+        }
+    }
+
+    private void scheduleDownloadQueueCheck(final int type, long delay) {
+        Runnable runnable = downloadQueueChecks.get(type);
+        if (runnable != null) {
+            AndroidUtilities.cancelRunOnUIThread(runnable);
+        }
+        runnable = new Runnable() {
+            @Override
+            public void run() {
+                downloadQueueChecks.remove(type);
+                newDownloadObjectsAvailable(type);
+            }
+        };
+        downloadQueueChecks.put(type, runnable);
+        AndroidUtilities.runOnUIThread(runnable, Math.max(0, delay));
     }
 
     protected void newDownloadObjectsAvailable(int downloadMask) {
@@ -705,12 +766,26 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         }
     }
 
-    private void checkDownloadFinished(String fileName, int state) {
+    //a failed download stays in the persistent queue behind the other entries and is retried with a growing delay,
+    //so a file that keeps failing can't restart in a loop or block the rest of the queue; cancels are not failures
+    private void checkDownloadFinished(String fileName, boolean success, int canceled) {
         DownloadObject downloadObject = downloadQueueKeys.get(fileName);
         if (downloadObject != null) {
             downloadQueueKeys.remove(fileName);
-            if (state == 0 || state == 2) {
-                MessagesStorage.getInstance().removeFromDownloadQueue(downloadObject.id, downloadObject.type, state != 0);
+            if (success) {
+                downloadAttempts.remove(fileName);
+                MessagesStorage.getInstance().removeFromDownloadQueue(downloadObject.id, downloadObject.type, false);
+            } else if (canceled != 1) {
+                Integer attempts = downloadAttempts.get(fileName);
+                attempts = attempts == null ? 1 : attempts + 1;
+                if (attempts >= MAX_DOWNLOAD_ATTEMPTS) {
+                    downloadAttempts.remove(fileName);
+                    MessagesStorage.getInstance().removeFromDownloadQueue(downloadObject.id, downloadObject.type, false);
+                } else {
+                    downloadAttempts.put(fileName, attempts);
+                    downloadRetryTimes.put(fileName, System.currentTimeMillis() + (DOWNLOAD_RETRY_DELAY << (attempts - 1)));
+                    MessagesStorage.getInstance().removeFromDownloadQueue(downloadObject.id, downloadObject.type, true);
+                }
             }
             if (downloadObject.type == AUTODOWNLOAD_MASK_PHOTO) {
                 photoDownloadQueue.remove(downloadObject);
@@ -736,6 +811,114 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         }
     }
 
+    private int getPrefetchNetworkType() {
+        if (ConnectionsManager.isConnectedToWiFi()) {
+            return PREFETCH_NETWORK_WIFI;
+        } else if(ConnectionsManager.isRoaming()) {
+            return PREFETCH_NETWORK_ROAMING;
+        } else {
+            return PREFETCH_NETWORK_MOBILE;
+        }
+    }
+
+    private int getPrefetchBudget(int networkType) {
+        if (networkType == PREFETCH_NETWORK_WIFI) {
+            return wifiPrefetchBudget;
+        } else if (networkType == PREFETCH_NETWORK_ROAMING) {
+            return roamingPrefetchBudget;
+        } else {
+            return mobileDataPrefetchBudget;
+        }
+    }
+
+    //the budgets are per day and survive restarts, the used part is what prefetched files actually took
+    private void checkPrefetchPeriod() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - prefetchPeriodStart < PREFETCH_BUDGET_PERIOD && currentTime >= prefetchPeriodStart) {
+            return;
+        }
+        prefetchPeriodStart = currentTime;
+        for (int a = 0; a < prefetchedBytes.length; a++) {
+            prefetchedBytes[a] = 0;
+        }
+        savePrefetchStats();
+    }
+
+    private void savePrefetchStats() {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong("prefetchPeriodStart", prefetchPeriodStart);
+        for (int a = 0; a < prefetchedBytes.length; a++) {
+            editor.putLong("prefetchedBytes" + a, prefetchedBytes[a]);
+        }
+        editor.commit();
+    }
+
+    private void checkPrefetchFinished(String fileName, boolean success) {
+        PrefetchRequest request = prefetchRequests.remove(fileName);
+        if (request == null) {
+            return;
+        }
+        pendingPrefetchBytes[request.networkType] -= request.size;
+        if (success) {
+            checkPrefetchPeriod();
+            prefetchedBytes[request.networkType] += request.size != 0 ? request.size : request.file.length();
+            savePrefetchStats();
+        }
+    }
+
+    //loads the images of messages that are about to be shown, so cells find them in the cache when they bind;
+    //full size photos follow the photo auto-download mask and everything counts against the network budget
+    public void prefetchMedia(ArrayList<MessageObject> messageObjects, boolean thumbsOnly) {
+        if (messageObjects == null || messageObjects.isEmpty()) {
+            return;
+        }
+        checkPrefetchPeriod();
+        int networkType = getPrefetchNetworkType();
+        if (prefetchedBytes[networkType] + pendingPrefetchBytes[networkType] >= getPrefetchBudget(networkType)) {
+            return;
+        }
+        boolean loadPhotos = !thumbsOnly && canDownloadMedia(AUTODOWNLOAD_MASK_PHOTO);
+        for (MessageObject messageObject : messageObjects) {
+            if (messageObject == null || messageObject.photoThumbs == null || messageObject.photoThumbs.isEmpty()) {
+                continue;
+            }
+            TLRPC.PhotoSize thumb = FileLoader.getClosestPhotoSizeWithSize(messageObject.photoThumbs, 80);
+            if (!prefetchPhotoSize(thumb, true, networkType)) {
+                return;
+            }
+            if (loadPhotos && messageObject.type == 1) {
+                TLRPC.PhotoSize photo = FileLoader.getClosestPhotoSizeWithSize(messageObject.photoThumbs, AndroidUtilities.getPhotoSize());
+                if (photo != thumb && !prefetchPhotoSize(photo, false, networkType)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean prefetchPhotoSize(TLRPC.PhotoSize photoSize, boolean cacheOnly, int networkType) {
+        if (photoSize == null || photoSize instanceof TLRPC.TL_photoCachedSize || photoSize.location == null) {
+            return true;
+        }
+        cacheOnly = cacheOnly || photoSize.size == 0 || photoSize.location.key != null;
+        String fileName = FileLoader.getAttachFileName(photoSize);
+        File file = FileLoader.getPathToAttach(photoSize, cacheOnly);
+        if (fileName.contains("" + Integer.MIN_VALUE) || prefetchRequests.containsKey(fileName) || file.exists()) {
+            return true;
+        }
+        if (prefetchedBytes[networkType] + pendingPrefetchBytes[networkType] + photoSize.size > getPrefetchBudget(networkType)) {
+            return false;
+        }
+        PrefetchRequest request = new PrefetchRequest();
+        request.networkType = networkType;
+        request.size = photoSize.size;
+        request.file = file;
+        prefetchRequests.put(fileName, request);
+        pendingPrefetchBytes[networkType] += photoSize.size;
+        FileLoader.getInstance().loadFile(photoSize.location, photoSize.size, cacheOnly, FileLoader.PRIORITY_PREFETCH);
+        return true;
+    }
+
     public void startMediaObserver() {
         if (android.os.Build.VERSION.SDK_INT < 14) {
             return;
@@ -929,7 +1112,8 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             }
             listenerInProgress = false;
             processLaterArrays();
-            checkDownloadFinished(fileName, (Integer)args[1]);
+            checkDownloadFinished(fileName, false, (Integer) args[1]);
+            checkPrefetchFinished(fileName, false);
         } else if (id == NotificationCenter.FileDidLoaded) {
             listenerInProgress = true;
             String fileName = (String)args[0];
@@ -945,7 +1129,8 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             }
             listenerInProgress = false;
             processLaterArrays();
-            checkDownloadFinished(fileName, 0);
+            checkDownloadFinished(fileName, true, 0);
+            checkPrefetchFinished(fileName, true);
         } else if (id == NotificationCenter.FileLoadProgressChanged) {
             listenerInProgress = true;
             String fileName = (String)args[0];
@@ -1484,10 +1669,9 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
 
                 recordingAudio = new TLRPC.TL_audio();
                 recordingAudio.dc_id = Integer.MIN_VALUE;
-                recordingAudio.id = UserConfig.lastLocalId;
+                recordingAudio.id = UserConfig.getNewLocalId();
                 recordingAudio.user_id = UserConfig.getClientUserId();
                 recordingAudio.mime_type = "audio/ogg";
-                UserConfig.lastLocalId--;
                 UserConfig.saveConfig(false);
 
                 recordingAudioFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), FileLoader.getAttachFileName(recordingAudio));
@@ -1741,26 +1925,20 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             return null;
         }
 
-        if (currentGifDrawable != null && currentGifMessageObject != null && messageObject.getId() == currentGifMessageObject.getId()) {
-            currentMediaCell = cell;
-            currentGifDrawable.parentView = new WeakReference<View>(cell);
-            return currentGifDrawable;
+        int id = messageObject.getId();
+        GifDrawable gifDrawable = gifDrawables.get(id);
+        if (gifDrawable != null) {
+            gifDrawable.parentView = new WeakReference<View>(cell);
+            if (gifDrawablesPausedByDetach.remove(id)) {
+                gifDrawable.start();
+            }
+            return gifDrawable;
         }
 
         if (create) {
-            if (currentMediaCell != null) {
-                if (currentGifDrawable != null) {
-                    currentGifDrawable.stop();
-                    currentGifDrawable.recycle();
-                }
-                currentMediaCell.clearGifImage();
-            }
-            currentGifMessageObject = cell.getMessageObject();
-            currentMediaCell = cell;
-
             File cacheFile = null;
-            if (currentGifMessageObject.messageOwner.attachPath != null && currentGifMessageObject.messageOwner.attachPath.length() != 0) {
-                File f = new File(currentGifMessageObject.messageOwner.attachPath);
+            if (messageObject.messageOwner.attachPath != null && messageObject.messageOwner.attachPath.length() != 0) {
+                File f = new File(messageObject.messageOwner.attachPath);
                 if (f.length() > 0) {
                     cacheFile = f;
                 }
@@ -1769,9 +1947,11 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                 cacheFile = FileLoader.getPathToMessage(messageObject.messageOwner);
             }
             try {
-                currentGifDrawable = new GifDrawable(cacheFile);
-                currentGifDrawable.parentView = new WeakReference<View>(cell);
-                return currentGifDrawable;
+                gifDrawable = new GifDrawable(cacheFile);
+                gifDrawable.parentView = new WeakReference<View>(cell);
+                gifDrawables.put(id, gifDrawable);
+                trimGifDrawables(id);
+                return gifDrawable;
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             }
@@ -1790,15 +1970,50 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             return;
         }
 
-        if (currentGifMessageObject != null && messageObject.getId() == currentGifMessageObject.getId()) {
-            if (currentGifDrawable != null) {
-                currentGifDrawable.stop();
-                currentGifDrawable.recycle();
-                currentGifDrawable = null;
+        int id = messageObject.getId();
+        GifDrawable gifDrawable = gifDrawables.get(id);
+        if (gifDrawable != null) {
+            if (gifDrawable.isRunning()) {
+                gifDrawable.stop();
+                gifDrawablesPausedByDetach.add(id);
             }
-            currentMediaCell = null;
-            currentGifMessageObject = null;
+            gifDrawable.parentView = null;
+        }
+    }
+
+    private void trimGifDrawables(int keepId) {
+        long totalSize = 0;
+        for (GifDrawable gifDrawable : gifDrawables.values()) {
+            totalSize += gifDrawable.getFrameByteCount();
+        }
+        Iterator<HashMap.Entry<Integer, GifDrawable>> iterator = gifDrawables.entrySet().iterator();
+        while (iterator.hasNext() && (gifDrawables.size() > MAX_GIF_DRAWABLES || totalSize > MAX_GIF_FRAMES_SIZE)) {
+            HashMap.Entry<Integer, GifDrawable> entry = iterator.next();
+            if (entry.getKey() == keepId) {
+                continue;
+            }
+            GifDrawable gifDrawable = entry.getValue();
+            totalSize -= gifDrawable.getFrameByteCount();
+            iterator.remove();
+            gifDrawablesPausedByDetach.remove(entry.getKey());
+            View parent = gifDrawable.parentView != null ? gifDrawable.parentView.get() : null;
+            if (parent instanceof ChatMediaCell) {
+                MessageObject messageObject = ((ChatMediaCell) parent).getMessageObject();
+                if (messageObject != null && messageObject.getId() == entry.getKey()) {
+                    ((ChatMediaCell) parent).clearGifImage();
+                }
+            }
+            recycleGifDrawable(entry.getKey(), gifDrawable);
+        }
+    }
+
+    private void recycleGifDrawable(int id, GifDrawable gifDrawable) {
+        int frames = gifDrawable.getRenderedFramesCount();
+        if (frames > 0) {
+            FileLog.e("tmessages", "gif " + id + " rendered " + frames + " frames, dropped " + gifDrawable.getDroppedFramesCount() + ", avg render " + (gifDrawable.getRenderTimeNanos() / frames / 1000) + " us");
         }
+        gifDrawable.stop();
+        gifDrawable.recycle();
     }
 
     public static boolean isWebp(Uri uri) {
@@ -1879,8 +2094,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         FileInputStream input = null;
         FileOutputStream output = null;
         try {
-            int id = UserConfig.lastLocalId;
-            UserConfig.lastLocalId--;
+            int id = UserConfig.getNewLocalId();
             parcelFD = ApplicationLoader.applicationContext.getContentResolver().openFileDescriptor(uri, "r");
             input = new FileInputStream(parcelFD.getFileDescriptor());
             File f = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), String.format(Locale.US, "%d.%s", id, ext));
@@ -2144,7 +2358,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         return -5;
     }
 
-    private void didWriteData(final MessageObject messageObject, final File file, final boolean last, final boolean error) {
+    private void didWriteData(final MessageObject messageObject, final File file, final long availableSize, final boolean last, final boolean error) {
         final boolean firstWrite = videoConvertFirstWrite;
         if (firstWrite) {
             videoConvertFirstWrite = false;
@@ -2158,7 +2372,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                     if (firstWrite) {
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.FilePreparingStarted, messageObject, file.toString());
                     }
-                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileNewChunkAvailable, messageObject, file.toString(), last ? file.length() : 0);
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileNewChunkAvailable, messageObject, file.toString(), last ? file.length() : 0, availableSize);
                 }
                 if (error || last) {
                     synchronized (videoConvertSync) {
@@ -2210,7 +2424,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                             info.offset = 0;
                             info.flags = extractor.getSampleFlags();
                             if (mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info, isAudio)) {
-                                didWriteData(messageObject, file, false, false);
+                                didWriteData(messageObject, file, mediaMuxer.getCommittedSize(), false, false);
                             }
                             extractor.advance();
                         } else {
@@ -2316,7 +2530,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
 
         File inputFile = new File(videoPath);
         if (!inputFile.canRead() || !isPreviousOk) {
-            didWriteData(messageObject, cacheFile, true, true);
+            didWriteData(messageObject, cacheFile, 0, true, true);
             preferences.edit().putBoolean("isPreviousOk", true).commit();
             return false;
         }
@@ -2537,7 +2751,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                                         if (info.size > 1) {
                                             if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
                                                 if (mediaMuxer.writeSampleData(videoTrackIndex, encodedData, info, false)) {
-                                                    didWriteData(messageObject, cacheFile, false, false);
+                                                    didWriteData(messageObject, cacheFile, mediaMuxer.getCommittedSize(), false, false);
                                                 }
                                             } else if (videoTrackIndex == -5) {
                                                 byte[] csd = new byte[info.size];
@@ -2712,11 +2926,11 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             }
         } else {
             preferences.edit().putBoolean("isPreviousOk", true).commit();
-            didWriteData(messageObject, cacheFile, true, true);
+            didWriteData(messageObject, cacheFile, 0, true, true);
             return false;
         }
         preferences.edit().putBoolean("isPreviousOk", true).commit();
-        didWriteData(messageObject, cacheFile, true, error);
+        didWriteData(messageObject, cacheFile, 0, true, error);
         return true;
     }
 }
@@ -33,6 +33,8 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,6 +70,36 @@ public class MessageObject {
     }
 
     private static final int LINES_PER_BLOCK = 10;
+    private static final int LAYOUT_CACHE_SIZE = 100;
+
+    private static final Pattern urlPattern = Pattern.compile("(^|\\s)@[a-zA-Z\\d_]{5,32}|(^|\\s)#[\\w@\\.]+");
+    private static final Pattern highlightSeparatorPattern = Pattern.compile(" *[;|؛] *");
+    private static final Pattern markdownBoldPattern = Pattern.compile("\\*\\*(.+?)\\*\\*");
+    private static final Pattern markdownBluePattern = Pattern.compile("\\*b(.+?)\\*\\*");
+    private static final Pattern markdownRedPattern = Pattern.compile("\\*r(.+?)\\*\\*");
+    private static final Pattern markdownWhitePattern = Pattern.compile("\\*w(.+?)\\*\\*");
+    private static String highlightWords;
+    private static Pattern highlightPattern;
+
+    private static class LayoutCacheEntry {
+        private String sourceText;
+        private String settingsKey;
+        private int maxWidth;
+        private float textSize;
+        private CharSequence messageText;
+        private ArrayList<TextLayoutBlock> textLayoutBlocks;
+        private int lastLineWidth;
+        private int textWidth;
+        private int textHeight;
+        private int blockHeight;
+    }
+
+    private static final LinkedHashMap<Integer, LayoutCacheEntry> layoutCache = new LinkedHashMap<Integer, LayoutCacheEntry>(LAYOUT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, LayoutCacheEntry> eldest) {
+            return size() > LAYOUT_CACHE_SIZE;
+        }
+    };
 
     public ArrayList<TextLayoutBlock> textLayoutBlocks;
 
@@ -321,18 +353,15 @@ public class MessageObject {
                 messageText = messageText.toString().replace("  ", " &nbsp;");
 
                 if (ApplicationLoader.WORDS_HIGHLIGHT.length() > 0) {
-                    String strMatch = ApplicationLoader.WORDS_HIGHLIGHT;
-                    // Make the match case-insensitive, and replace semicolon with vertical bar
-                    strMatch = "(?i)" + strMatch.replaceAll(" *[;|؛] *", "|");
-                    messageText = messageText.toString().replaceAll("(\\b)(" + strMatch + ")(\\b)", "$1<font color='" + ApplicationLoader.WORDS_HIGHLIGHT_COLOR + "'>$2</font>$3");
+                    messageText = getHighlightPattern(ApplicationLoader.WORDS_HIGHLIGHT).matcher(messageText).replaceAll("$1<font color='" + ApplicationLoader.WORDS_HIGHLIGHT_COLOR + "'>$2</font>$3");
                 }
 
                 if (ApplicationLoader.MARK_DOWN == true) {
                     // Text between two * will be in BLUE and text between two ^ will be BIG size
-                    messageText = messageText.toString().replaceAll("\\*\\*(.+?)\\*\\*", "<b>$1</b>");
-                    messageText = messageText.toString().replaceAll("\\*b(.+?)\\*\\*", "<font color='blue'>$1</font>");
-                    messageText = messageText.toString().replaceAll("\\*r(.+?)\\*\\*", "<font color='red'>$1</font>");
-                    messageText = messageText.toString().replaceAll("\\*w(.+?)\\*\\*", "<font color='#ffffff'>$1</font>");
+                    messageText = markdownBoldPattern.matcher(messageText).replaceAll("<b>$1</b>");
+                    messageText = markdownBluePattern.matcher(messageText).replaceAll("<font color='blue'>$1</font>");
+                    messageText = markdownRedPattern.matcher(messageText).replaceAll("<font color='red'>$1</font>");
+                    messageText = markdownWhitePattern.matcher(messageText).replaceAll("<font color='#ffffff'>$1</font>");
                 }
 
                 messageText = messageText.toString().replace("\n", "<br>");     // Change new line to something that Html will understand
@@ -572,11 +601,75 @@ public class MessageObject {
         return false;
     }
 
+    private static Pattern getHighlightPattern(String words) {
+        synchronized (highlightSeparatorPattern) {
+            if (highlightPattern == null || !words.equals(highlightWords)) {
+                // Make the match case-insensitive, and replace semicolon with vertical bar
+                String strMatch = "(?i)" + highlightSeparatorPattern.matcher(words).replaceAll("|");
+                highlightPattern = Pattern.compile("(\\b)(" + strMatch + ")(\\b)");
+                highlightWords = words;
+            }
+            return highlightPattern;
+        }
+    }
+
     private void generateLayout() {
         if (type != 0 || messageOwner.to_id == null || messageText == null || messageText.length() == 0) {
             return;
         }
 
+        int maxWidth;
+        if (AndroidUtilities.isTablet()) {
+            if (messageOwner.to_id.chat_id != 0) {
+                maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(122);
+            } else {
+                maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(80);
+            }
+        } else {
+            if (messageOwner.to_id.chat_id != 0) {
+                maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(122);
+            } else {
+                maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(80);
+            }
+        }
+
+        String sourceText = messageText.toString();
+        String settingsKey = ApplicationLoader.MARK_DOWN + "_" + ApplicationLoader.WORDS_HIGHLIGHT + "_" + ApplicationLoader.WORDS_HIGHLIGHT_COLOR;
+        float textSize = textPaint.getTextSize();
+        synchronized (layoutCache) {
+            LayoutCacheEntry entry = layoutCache.get(messageOwner.id);
+            if (entry != null && entry.maxWidth == maxWidth && entry.textSize == textSize && entry.sourceText.equals(sourceText) && entry.settingsKey.equals(settingsKey)) {
+                messageText = entry.messageText;
+                textLayoutBlocks = entry.textLayoutBlocks;
+                lastLineWidth = entry.lastLineWidth;
+                textWidth = entry.textWidth;
+                textHeight = entry.textHeight;
+                blockHeight = entry.blockHeight;
+                return;
+            }
+        }
+
+        generateLayout(maxWidth);
+
+        if (textLayoutBlocks != null && !textLayoutBlocks.isEmpty()) {
+            LayoutCacheEntry entry = new LayoutCacheEntry();
+            entry.sourceText = sourceText;
+            entry.settingsKey = settingsKey;
+            entry.maxWidth = maxWidth;
+            entry.textSize = textSize;
+            entry.messageText = messageText;
+            entry.textLayoutBlocks = textLayoutBlocks;
+            entry.lastLineWidth = lastLineWidth;
+            entry.textWidth = textWidth;
+            entry.textHeight = textHeight;
+            entry.blockHeight = blockHeight;
+            synchronized (layoutCache) {
+                layoutCache.put(messageOwner.id, entry);
+            }
+        }
+    }
+
+    private void generateLayout(int maxWidth) {
         textLayoutBlocks = new ArrayList<>();
 
         if (messageText instanceof Spannable && containsUrls(messageText)) {
@@ -587,8 +680,7 @@ public class MessageObject {
             }
 
             try {
-                Pattern pattern = Pattern.compile("(^|\\s)@[a-zA-Z\\d_]{5,32}|(^|\\s)#[\\w@\\.]+");
-                Matcher matcher = pattern.matcher(messageText);
+                Matcher matcher = urlPattern.matcher(messageText);
                 while (matcher.find()) {
                     int start = matcher.start();
                     int end = matcher.end();
@@ -603,21 +695,6 @@ public class MessageObject {
             }
         }
 
-        int maxWidth;
-        if (AndroidUtilities.isTablet()) {
-            if (messageOwner.to_id.chat_id != 0) {
-                maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(122);
-            } else {
-                maxWidth = AndroidUtilities.getMinTabletSide() - AndroidUtilities.dp(80);
-            }
-        } else {
-            if (messageOwner.to_id.chat_id != 0) {
-                maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(122);
-            } else {
-                maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(80);
-            }
-        }
-
         StaticLayout textLayout = null;
 
         try {
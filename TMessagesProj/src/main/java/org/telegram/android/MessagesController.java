@@ -49,6 +49,18 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     public ArrayList<TLRPC.TL_dialog> dialogs = new ArrayList<>();
     public ArrayList<TLRPC.TL_dialog> dialogsServerOnly = new ArrayList<>();
     public ConcurrentHashMap<Long, TLRPC.TL_dialog> dialogs_dict = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private static final Comparator<TLRPC.TL_dialog> dialogDateComparator = new Comparator<TLRPC.TL_dialog>() {
+        @Override
+        public int compare(TLRPC.TL_dialog tl_dialog, TLRPC.TL_dialog tl_dialog2) {
+            if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
+                return 0;
+            } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
+                return 1;
+            } else {
+                return -1;
+            }
+        }
+    };
     public HashMap<Integer, MessageObject> dialogMessage = new HashMap<>();
     public ConcurrentHashMap<Long, ArrayList<PrintingUser>> printingUsers = new ConcurrentHashMap<>(20, 1.0f, 2);
     public HashMap<Long, CharSequence> printingStrings = new HashMap<>();
@@ -1068,8 +1080,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             TLRPC.TL_dialog dialog = dialogs_dict.get(did);
             if (dialog != null) {
                 if (!onlyHistory) {
-                    dialogs.remove(dialog);
-                    dialogsServerOnly.remove(dialog);
+                    removeDialog(dialog);
                     dialogs_dict.remove(did);
                     totalDialogsCount--;
                 } else {
@@ -1631,26 +1642,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         }
 
                         dialogs.clear();
-                        dialogsServerOnly.clear();
                         dialogs.addAll(dialogs_dict.values());
-                        Collections.sort(dialogs, new Comparator<TLRPC.TL_dialog>() {
-                            @Override
-                            public int compare(TLRPC.TL_dialog tl_dialog, TLRPC.TL_dialog tl_dialog2) {
-                                if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                                    return 0;
-                                } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                                    return 1;
-                                } else {
-                                    return -1;
-                                }
-                            }
-                        });
-                        for (TLRPC.TL_dialog d : dialogs) {
-                            int high_id = (int) (d.id >> 32);
-                            if ((int) d.id != 0 && high_id != 1) {
-                                dialogsServerOnly.add(d);
-                            }
-                        }
+                        sortDialogs();
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
                         NotificationsController.getInstance().processDialogsUpdateRead(dialogsToUpdate);
                     }
@@ -1768,26 +1761,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         }
 
                         dialogs.clear();
-                        dialogsServerOnly.clear();
                         dialogs.addAll(dialogs_dict.values());
-                        Collections.sort(dialogs, new Comparator<TLRPC.TL_dialog>() {
-                            @Override
-                            public int compare(TLRPC.TL_dialog tl_dialog, TLRPC.TL_dialog tl_dialog2) {
-                                if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                                    return 0;
-                                } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                                    return 1;
-                                } else {
-                                    return -1;
-                                }
-                            }
-                        });
-                        for (TLRPC.TL_dialog d : dialogs) {
-                            int high_id = (int) (d.id >> 32);
-                            if ((int) d.id != 0 && high_id != 1) {
-                                dialogsServerOnly.add(d);
-                            }
-                        }
+                        sortDialogs();
 
                         dialogsEndReached = (dialogsRes.dialogs.size() == 0 || dialogsRes.dialogs.size() != count) && !isCache;
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
@@ -2639,14 +2614,15 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
                     final ArrayList<TLRPC.TL_updateMessageID> msgUpdates = new ArrayList<>();
                     if (!res.other_updates.isEmpty()) {
-                        for (int a = 0; a < res.other_updates.size(); a++) {
-                            TLRPC.Update upd = res.other_updates.get(a);
+                        ArrayList<TLRPC.Update> otherUpdates = new ArrayList<>(res.other_updates.size());
+                        for (TLRPC.Update upd : res.other_updates) {
                             if (upd instanceof TLRPC.TL_updateMessageID) {
                                 msgUpdates.add((TLRPC.TL_updateMessageID) upd);
-                                res.other_updates.remove(a);
-                                a--;
+                            } else {
+                                otherUpdates.add(upd);
                             }
                         }
+                        res.other_updates = otherUpdates;
                     }
 
                     AndroidUtilities.runOnUIThread(new Runnable() {
@@ -2689,13 +2665,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 public void run() {
                                     if (!res.new_messages.isEmpty() || !res.new_encrypted_messages.isEmpty()) {
                                         final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
-                                        for (TLRPC.EncryptedMessage encryptedMessage : res.new_encrypted_messages) {
-                                            ArrayList<TLRPC.Message> decryptedMessages = SecretChatHelper.getInstance().decryptMessage(encryptedMessage);
-                                            if (decryptedMessages != null && !decryptedMessages.isEmpty()) {
-                                                for (TLRPC.Message message : decryptedMessages) {
-                                                    res.new_messages.add(message);
-                                                }
-                                            }
+                                        if (!res.new_encrypted_messages.isEmpty()) {
+                                            res.new_messages.addAll(SecretChatHelper.getInstance().decryptMessages(res.new_encrypted_messages));
                                         }
 
                                         ImageLoader.saveMessagesThumbs(res.new_messages);
@@ -2741,11 +2712,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                         AndroidUtilities.runOnUIThread(new Runnable() {
                                             @Override
                                             public void run() {
-                                                for (HashMap.Entry<Long, ArrayList<MessageObject>> pair : messages.entrySet()) {
-                                                    Long key = pair.getKey();
-                                                    ArrayList<MessageObject> value = pair.getValue();
-                                                    updateInterfaceWithMessages(key, value);
-                                                }
+                                                updateInterfaceWithMessages(messages);
                                                 NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
                                             }
                                         });
@@ -3118,6 +3085,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         boolean printChanged = false;
         final ArrayList<TLRPC.ChatParticipants> chatInfoToUpdate = new ArrayList<>();
         final ArrayList<TLRPC.Update> updatesOnMainThread = new ArrayList<>();
+        final HashMap<Integer, Integer> statusUpdateIndexes = new HashMap<>();
         final ArrayList<TLRPC.TL_updateEncryptedMessagesRead> tasks = new ArrayList<>();
         final ArrayList<Integer> contactsIds = new ArrayList<>();
 
@@ -3199,18 +3167,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 //markAsReadMessages.addAll(update.messages); disabled for now
             } else if (update instanceof TLRPC.TL_updateReadHistoryInbox) {
                 TLRPC.Peer peer = ((TLRPC.TL_updateReadHistoryInbox) update).peer;
-                if (peer.chat_id != 0) {
-                    markAsReadMessagesInbox.put(-peer.chat_id, update.max_id);
-                } else {
-                    markAsReadMessagesInbox.put(peer.user_id, update.max_id);
-                }
+                putMaxReadId(markAsReadMessagesInbox, peer.chat_id != 0 ? -peer.chat_id : peer.user_id, update.max_id);
             } else if (update instanceof TLRPC.TL_updateReadHistoryOutbox) {
                 TLRPC.Peer peer = ((TLRPC.TL_updateReadHistoryOutbox) update).peer;
-                if (peer.chat_id != 0) {
-                    markAsReadMessagesOutbox.put(-peer.chat_id, update.max_id);
-                } else {
-                    markAsReadMessagesOutbox.put(peer.user_id, update.max_id);
-                }
+                putMaxReadId(markAsReadMessagesOutbox, peer.chat_id != 0 ? -peer.chat_id : peer.user_id, update.max_id);
             } else if (update instanceof TLRPC.TL_updateDeleteMessages) {
                 deletedMessages.addAll(update.messages);
             } else if (update instanceof TLRPC.TL_updateUserTyping || update instanceof TLRPC.TL_updateChatUserTyping) {
@@ -3246,7 +3206,13 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 chatInfoToUpdate.add(update.participants);
             } else if (update instanceof TLRPC.TL_updateUserStatus) {
                 interfaceUpdateMask |= UPDATE_MASK_STATUS;
-                updatesOnMainThread.add(update);
+                Integer index = statusUpdateIndexes.get(update.user_id);
+                if (index != null) {
+                    updatesOnMainThread.set(index, update);
+                } else {
+                    statusUpdateIndexes.put(update.user_id, updatesOnMainThread.size());
+                    updatesOnMainThread.add(update);
+                }
             } else if (update instanceof TLRPC.TL_updateUserName) {
                 interfaceUpdateMask |= UPDATE_MASK_NAME;
                 updatesOnMainThread.add(update);
@@ -3371,7 +3337,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     onlinePrivacy.put(update.user_id, ConnectionsManager.getInstance().getCurrentTime());
                 }
             } else if (update instanceof TLRPC.TL_updateEncryptedMessagesRead) {
-                markAsReadEncrypted.put(update.chat_id, Math.max(update.max_date, update.date));
+                putMaxReadId(markAsReadEncrypted, update.chat_id, Math.max(update.max_date, update.date));
                 tasks.add((TLRPC.TL_updateEncryptedMessagesRead) update);
             } else if (update instanceof TLRPC.TL_updateChatParticipantAdd) {
                 MessagesStorage.getInstance().updateChatInfo(update.chat_id, update.user_id, false, update.inviter_id, update.version);
@@ -3457,20 +3423,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             ContactsController.getInstance().processContactsUpdates(contactsIds, usersDict);
         }
 
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!pushMessages.isEmpty()) {
-                            NotificationsController.getInstance().processNewMessages(pushMessages, true);
-                        }
-                    }
-                });
-            }
-        });
-
         if (!messagesArr.isEmpty()) {
             MessagesStorage.getInstance().putMessages(messagesArr, true, true, false, MediaController.getInstance().getAutodownloadMask());
         }
@@ -3609,11 +3561,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 }
 
                 if (!messages.isEmpty()) {
-                    for (HashMap.Entry<Long, ArrayList<MessageObject>> entry : messages.entrySet()) {
-                        Long key = entry.getKey();
-                        ArrayList<MessageObject> value = entry.getValue();
-                        updateInterfaceWithMessages(key, value);
-                    }
+                    updateInterfaceWithMessages(messages);
                     NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
                 }
                 if (printChangedArg) {
@@ -3641,6 +3589,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
+                        if (!pushMessages.isEmpty()) {
+                            NotificationsController.getInstance().processNewMessages(pushMessages, true);
+                        }
                         int updateMask = 0;
                         if (!markAsReadMessagesInbox.isEmpty() || !markAsReadMessagesOutbox.isEmpty()) {
                             NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesRead, markAsReadMessagesInbox, markAsReadMessagesOutbox);
@@ -3718,6 +3669,13 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         return true;
     }
 
+    private void putMaxReadId(HashMap<Integer, Integer> map, int key, int maxId) {
+        Integer current = map.get(key);
+        if (current == null || current < maxId) {
+            map.put(key, maxId);
+        }
+    }
+
     private boolean isNotifySettingsMuted(TLRPC.PeerNotifySettings settings) {
         return settings instanceof TLRPC.TL_peerNotifySettings && settings.mute_until > ConnectionsManager.getInstance().getCurrentTime();
     }
@@ -3777,6 +3735,12 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         updateInterfaceWithMessages(uid, messages, false);
     }
 
+    protected void updateInterfaceWithMessages(HashMap<Long, ArrayList<MessageObject>> messages) {
+        for (HashMap.Entry<Long, ArrayList<MessageObject>> entry : messages.entrySet()) {
+            updateInterfaceWithMessages(entry.getKey(), entry.getValue(), false);
+        }
+    }
+
     protected void updateInterfaceWithMessages(final long uid, final ArrayList<MessageObject> messages, boolean isBroadcast) {
         MessageObject lastMessage = null;
         TLRPC.TL_dialog dialog = dialogs_dict.get(uid);
@@ -3791,8 +3755,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         }
 
-        boolean changed = false;
-
         if (dialog == null) {
             if (!isBroadcast) {
                 dialog = new TLRPC.TL_dialog();
@@ -3801,9 +3763,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 dialog.top_message = lastMessage.getId();
                 dialog.last_message_date = lastMessage.messageOwner.date;
                 dialogs_dict.put(uid, dialog);
-                dialogs.add(dialog);
+                insertDialog(dialog);
                 dialogMessage.put(lastMessage.getId(), lastMessage);
-                changed = true;
             }
         } else {
             boolean change = false;
@@ -3825,33 +3786,87 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             if (change) {
                 dialogMessage.remove(dialog.top_message);
                 dialog.top_message = lastMessage.getId();
-                if (!isBroadcast) {
+                if (!isBroadcast && dialog.last_message_date != lastMessage.messageOwner.date) {
+                    int oldDate = dialog.last_message_date;
                     dialog.last_message_date = lastMessage.messageOwner.date;
-                    changed = true;
+                    repositionDialog(dialog, oldDate);
                 }
                 dialogMessage.put(lastMessage.getId(), lastMessage);
             }
         }
+    }
 
-        if (changed) {
-            dialogsServerOnly.clear();
-            Collections.sort(dialogs, new Comparator<TLRPC.TL_dialog>() {
-                @Override
-                public int compare(TLRPC.TL_dialog tl_dialog, TLRPC.TL_dialog tl_dialog2) {
-                    if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                        return 0;
-                    } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                        return 1;
-                    } else {
-                        return -1;
-                    }
-                }
-            });
-            for (TLRPC.TL_dialog d : dialogs) {
-                int high_id = (int)(d.id >> 32);
-                if ((int)d.id != 0 && high_id != 1) {
-                    dialogsServerOnly.add(d);
-                }
+    private static boolean isServerDialog(TLRPC.TL_dialog dialog) {
+        int high_id = (int)(dialog.id >> 32);
+        return (int)dialog.id != 0 && high_id != 1;
+    }
+
+    //first index whose dialog is not newer than date, lists are ordered by last_message_date descending
+    private static int findDialogPosition(ArrayList<TLRPC.TL_dialog> list, int date) {
+        int low = 0;
+        int high = list.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (list.get(mid).last_message_date > date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int findDialogIndex(ArrayList<TLRPC.TL_dialog> list, TLRPC.TL_dialog dialog, int date) {
+        for (int a = findDialogPosition(list, date); a < list.size(); a++) {
+            TLRPC.TL_dialog d = list.get(a);
+            if (d == dialog) {
+                return a;
+            } else if (d.last_message_date != date) {
+                break;
+            }
+        }
+        return list.indexOf(dialog);
+    }
+
+    private static void moveDialog(ArrayList<TLRPC.TL_dialog> list, TLRPC.TL_dialog dialog, int oldDate) {
+        int index = findDialogIndex(list, dialog, oldDate);
+        if (index != -1) {
+            list.remove(index);
+        }
+        list.add(findDialogPosition(list, dialog.last_message_date), dialog);
+    }
+
+    public void insertDialog(TLRPC.TL_dialog dialog) {
+        dialogs.add(findDialogPosition(dialogs, dialog.last_message_date), dialog);
+        if (isServerDialog(dialog)) {
+            dialogsServerOnly.add(findDialogPosition(dialogsServerOnly, dialog.last_message_date), dialog);
+        }
+    }
+
+    private void removeDialog(TLRPC.TL_dialog dialog) {
+        int index = findDialogIndex(dialogs, dialog, dialog.last_message_date);
+        if (index != -1) {
+            dialogs.remove(index);
+        }
+        index = findDialogIndex(dialogsServerOnly, dialog, dialog.last_message_date);
+        if (index != -1) {
+            dialogsServerOnly.remove(index);
+        }
+    }
+
+    private void repositionDialog(TLRPC.TL_dialog dialog, int oldDate) {
+        moveDialog(dialogs, dialog, oldDate);
+        if (isServerDialog(dialog)) {
+            moveDialog(dialogsServerOnly, dialog, oldDate);
+        }
+    }
+
+    private void sortDialogs() {
+        dialogsServerOnly.clear();
+        Collections.sort(dialogs, dialogDateComparator);
+        for (TLRPC.TL_dialog d : dialogs) {
+            if (isServerDialog(d)) {
+                dialogsServerOnly.add(d);
             }
         }
     }
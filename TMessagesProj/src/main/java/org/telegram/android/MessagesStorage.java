@@ -1454,17 +1454,30 @@ public class MessagesStorage {
         });
     }
 
-    public void putCachedPhoneBook(final HashMap<Integer, ContactsController.Contact> contactHashMap) {
+    public void putCachedPhoneBook(final HashMap<Integer, ContactsController.Contact> contactHashMap, final ArrayList<Integer> removedIds) {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 try {
                     database.beginTransaction();
+                    if (removedIds != null && !removedIds.isEmpty()) {
+                        String ids = TextUtils.join(",", removedIds);
+                        database.executeFast(String.format(Locale.US, "DELETE FROM user_contacts_v6 WHERE uid IN(%s)", ids)).stepThis().dispose();
+                        database.executeFast(String.format(Locale.US, "DELETE FROM user_phones_v6 WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    }
                     SQLitePreparedStatement state = database.executeFast("REPLACE INTO user_contacts_v6 VALUES(?, ?, ?)");
                     SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO user_phones_v6 VALUES(?, ?, ?, ?)");
+                    SQLitePreparedStatement state3 = database.executeFast("DELETE FROM user_phones_v6 WHERE uid = ?");
+                    SQLitePreparedStatement state4 = database.executeFast("DELETE FROM user_contacts_v6 WHERE uid = ?");
                     for (HashMap.Entry<Integer, ContactsController.Contact> entry : contactHashMap.entrySet()) {
                         ContactsController.Contact contact = entry.getValue();
+                        state3.requery();
+                        state3.bindInteger(1, contact.id);
+                        state3.step();
                         if (contact.phones.isEmpty() || contact.shortPhones.isEmpty()) {
+                            state4.requery();
+                            state4.bindInteger(1, contact.id);
+                            state4.step();
                             continue;
                         }
                         state.requery();
@@ -1483,6 +1496,8 @@ public class MessagesStorage {
                     }
                     state.dispose();
                     state2.dispose();
+                    state3.dispose();
+                    state4.dispose();
                     database.commitTransaction();
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -8,8 +8,16 @@
 
 package org.telegram.android;
 
+import android.os.Looper;
+
+import org.telegram.messenger.BuildVars;
+import org.telegram.messenger.FileLog;
+
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class NotificationCenter {
 
@@ -88,12 +96,33 @@ public class NotificationCenter {
     public static final int audioDidStarted = totalEvents++;
     public static final int audioRouteChanged = totalEvents++;
 
-    final private HashMap<Integer, ArrayList<Object>> observers = new HashMap<>();
+    public static final int COALESCE_NONE = 0;
+    public static final int COALESCE_LATEST_BY_KEY = 1;
+    public static final int COALESCE_MERGE_MASK = 2;
+
+    private final static long STATS_INTERVAL = 10000;
+
+    final private AtomicReferenceArray<Object[]> observers = new AtomicReferenceArray<>(totalEvents);
+    final private Object observersSync = new Object();
 
-    final private HashMap<Integer, Object> removeAfterBroadcast = new HashMap<>();
-    final private HashMap<Integer, Object> addAfterBroadcast = new HashMap<>();
+    //coalesced posts wait for the next UI loop pass: LATEST_BY_KEY keeps the last args per args[0], MERGE_MASK ORs args[0] together
+    final private int[] coalescingModes = new int[totalEvents];
+    final private HashMap<Integer, LinkedHashMap<Object, Object[]>> pendingKeyed = new HashMap<>();
+    final private HashMap<Integer, Object[]> pendingMasks = new HashMap<>();
+    private boolean flushScheduled = false;
 
-    private int broadcasting = 0;
+    final private int[] postCounts = new int[totalEvents];
+    final private int[] deliveredCounts = new int[totalEvents];
+    final private long[] dispatchTimes = new long[totalEvents];
+    final private Object statsSync = new Object();
+    private long lastStatsTime = System.currentTimeMillis();
+
+    private Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushCoalesced();
+        }
+    };
 
     private static volatile NotificationCenter Instance = null;
     public static NotificationCenter getInstance() {
@@ -113,63 +142,174 @@ public class NotificationCenter {
         void didReceivedNotification(int id, Object... args);
     }
 
+    public NotificationCenter() {
+        setCoalescingMode(FileLoadProgressChanged, COALESCE_LATEST_BY_KEY);
+        setCoalescingMode(FileUploadProgressChanged, COALESCE_LATEST_BY_KEY);
+        setCoalescingMode(updateInterfaces, COALESCE_MERGE_MASK);
+    }
+
+    public void setCoalescingMode(int id, int mode) {
+        synchronized (pendingMasks) {
+            coalescingModes[id] = mode;
+        }
+    }
+
     public void postNotificationName(int id, Object... args) {
-        synchronized (observers) {
-            broadcasting++;
-            ArrayList<Object> objects = observers.get(id);
-            if (objects != null) {
-                for (Object obj : objects) {
-                    ((NotificationCenterDelegate)obj).didReceivedNotification(id, args);
-                }
+        if (BuildVars.DEBUG_VERSION) {
+            synchronized (statsSync) {
+                postCounts[id]++;
             }
-            broadcasting--;
-            if (broadcasting == 0) {
-                if (!removeAfterBroadcast.isEmpty()) {
-                    for (HashMap.Entry<Integer, Object> entry : removeAfterBroadcast.entrySet()) {
-                        removeObserver(entry.getValue(), entry.getKey());
-                    }
-                    removeAfterBroadcast.clear();
+        }
+        int mode;
+        synchronized (pendingMasks) {
+            mode = coalescingModes[id];
+            if (mode == COALESCE_LATEST_BY_KEY && args.length > 0) {
+                LinkedHashMap<Object, Object[]> pending = pendingKeyed.get(id);
+                if (pending == null) {
+                    pending = new LinkedHashMap<>();
+                    pendingKeyed.put(id, pending);
                 }
-                if (!addAfterBroadcast.isEmpty()) {
-                    for (HashMap.Entry<Integer, Object> entry : addAfterBroadcast.entrySet()) {
-                        addObserver(entry.getValue(), entry.getKey());
-                    }
-                    addAfterBroadcast.clear();
+                pending.remove(args[0]);
+                pending.put(args[0], args);
+                scheduleFlush();
+                return;
+            } else if (mode == COALESCE_MERGE_MASK && args.length == 1 && args[0] instanceof Integer) {
+                Object[] pending = pendingMasks.get(id);
+                if (pending == null) {
+                    pendingMasks.put(id, new Object[] {args[0]});
+                } else {
+                    pending[0] = (Integer) pending[0] | (Integer) args[0];
                 }
+                scheduleFlush();
+                return;
             }
         }
+        //pending coalesced notifications go to UI observers, so they are only delivered inline on the UI thread,
+        //elsewhere the scheduled flush delivers them
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            flushCoalesced();
+        }
+        dispatch(id, args);
     }
 
-    public void addObserver(Object observer, int id) {
-        synchronized (observers) {
-            if (broadcasting != 0) {
-                addAfterBroadcast.put(id, observer);
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            AndroidUtilities.runOnUIThread(flushRunnable);
+        }
+    }
+
+    private void flushCoalesced() {
+        ArrayList<Integer> ids = null;
+        ArrayList<Object[]> argsList = null;
+        synchronized (pendingMasks) {
+            if (!flushScheduled) {
                 return;
             }
-            ArrayList<Object> objects = observers.get(id);
-            if (objects == null) {
-                observers.put(id, (objects = new ArrayList<>()));
+            flushScheduled = false;
+            AndroidUtilities.cancelRunOnUIThread(flushRunnable);
+            ids = new ArrayList<>();
+            argsList = new ArrayList<>();
+            for (HashMap.Entry<Integer, LinkedHashMap<Object, Object[]>> entry : pendingKeyed.entrySet()) {
+                for (Object[] args : entry.getValue().values()) {
+                    ids.add(entry.getKey());
+                    argsList.add(args);
+                }
             }
-            if (objects.contains(observer)) {
+            for (HashMap.Entry<Integer, Object[]> entry : pendingMasks.entrySet()) {
+                ids.add(entry.getKey());
+                argsList.add(entry.getValue());
+            }
+            pendingKeyed.clear();
+            pendingMasks.clear();
+        }
+        for (int a = 0; a < ids.size(); a++) {
+            dispatch(ids.get(a), argsList.get(a));
+        }
+    }
+
+    private void dispatch(int id, Object[] args) {
+        Object[] objects = observers.get(id);
+        if (objects != null) {
+            long startTime = System.nanoTime();
+            for (Object obj : objects) {
+                ((NotificationCenterDelegate)obj).didReceivedNotification(id, args);
+            }
+            if (BuildVars.DEBUG_VERSION) {
+                synchronized (statsSync) {
+                    deliveredCounts[id]++;
+                    dispatchTimes[id] += System.nanoTime() - startTime;
+                }
+            }
+        }
+        if (BuildVars.DEBUG_VERSION) {
+            synchronized (statsSync) {
+                checkDispatchStats();
+            }
+        }
+    }
+
+    private void checkDispatchStats() {
+        long currentTime = System.currentTimeMillis();
+        long elapsed = currentTime - lastStatsTime;
+        if (elapsed < STATS_INTERVAL) {
+            return;
+        }
+        lastStatsTime = currentTime;
+        for (int a = 0; a < postCounts.length; a++) {
+            if (postCounts[a] == 0) {
+                continue;
+            }
+            FileLog.d("tmessages", String.format(Locale.US, "notification %d posts/s = %.1f, delivered = %d, dispatch time = %d us", a, postCounts[a] * 1000.0f / elapsed, deliveredCounts[a], dispatchTimes[a] / 1000));
+            postCounts[a] = 0;
+            deliveredCounts[a] = 0;
+            dispatchTimes[a] = 0;
+        }
+    }
+
+    public void addObserver(Object observer, int id) {
+        synchronized (observersSync) {
+            Object[] objects = observers.get(id);
+            if (objects == null) {
+                observers.set(id, new Object[] {observer});
                 return;
             }
-            objects.add(observer);
+            for (Object obj : objects) {
+                if (obj == observer) {
+                    return;
+                }
+            }
+            Object[] newObjects = new Object[objects.length + 1];
+            System.arraycopy(objects, 0, newObjects, 0, objects.length);
+            newObjects[objects.length] = observer;
+            observers.set(id, newObjects);
         }
     }
 
     public void removeObserver(Object observer, int id) {
-        synchronized (observers) {
-            if (broadcasting != 0) {
-                removeAfterBroadcast.put(id, observer);
+        synchronized (observersSync) {
+            Object[] objects = observers.get(id);
+            if (objects == null) {
                 return;
             }
-            ArrayList<Object> objects = observers.get(id);
-            if (objects != null) {
-                objects.remove(observer);
-                if (objects.size() == 0) {
-                    observers.remove(id);
+            int index = -1;
+            for (int a = 0; a < objects.length; a++) {
+                if (objects[a] == observer) {
+                    index = a;
+                    break;
                 }
             }
+            if (index == -1) {
+                return;
+            }
+            if (objects.length == 1) {
+                observers.set(id, null);
+                return;
+            }
+            Object[] newObjects = new Object[objects.length - 1];
+            System.arraycopy(objects, 0, newObjects, 0, index);
+            System.arraycopy(objects, index + 1, newObjects, index, objects.length - index - 1);
+            observers.set(id, newObjects);
         }
     }
 }
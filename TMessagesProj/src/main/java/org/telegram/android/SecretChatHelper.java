@@ -31,10 +31,12 @@ import org.telegram.messenger.Utilities;
 import java.io.File;
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SecretChatHelper {
 
@@ -42,6 +44,9 @@ public class SecretChatHelper {
 
     private ArrayList<Integer> sendingNotifyLayer = new ArrayList<>();
     private HashMap<Integer, ArrayList<TLRPC.TL_decryptedMessageHolder>> secretHolesQueue = new HashMap<>();
+
+    private final static int DECRYPT_THREADS = 3;
+    private final static int MIN_PARALLEL_DECRYPT_COUNT = 8;
     private HashMap<Integer, TLRPC.EncryptedChat> acceptingChats = new HashMap<>();
     public ArrayList<TLRPC.Update> delayedEncryptedChatUpdates = new ArrayList<>();
     private ArrayList<Long> pendingEncMessagesToDelete = new ArrayList<>();
@@ -163,20 +168,8 @@ public class SecretChatHelper {
                 @Override
                 public void run() {
                     MessagesController.getInstance().dialogs_dict.put(dialog.id, dialog);
-                    MessagesController.getInstance().dialogs.add(dialog);
+                    MessagesController.getInstance().insertDialog(dialog);
                     MessagesController.getInstance().putEncryptedChat(newChat, false);
-                    Collections.sort(MessagesController.getInstance().dialogs, new Comparator<TLRPC.TL_dialog>() {
-                        @Override
-                        public int compare(TLRPC.TL_dialog tl_dialog, TLRPC.TL_dialog tl_dialog2) {
-                            if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                                return 0;
-                            } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                                return 1;
-                            } else {
-                                return -1;
-                            }
-                        }
-                    });
                     NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
                 }
             });
@@ -1257,18 +1250,6 @@ public class SecretChatHelper {
         if (holes == null) {
             return;
         }
-        Collections.sort(holes, new Comparator<TLRPC.TL_decryptedMessageHolder>() {
-            @Override
-            public int compare(TLRPC.TL_decryptedMessageHolder lhs, TLRPC.TL_decryptedMessageHolder rhs) {
-                if (lhs.layer.out_seq_no > rhs.layer.out_seq_no) {
-                    return 1;
-                } else if (lhs.layer.out_seq_no < rhs.layer.out_seq_no) {
-                    return -1;
-                }
-                return 0;
-            }
-        });
-
         boolean update = false;
         for (int a = 0; a < holes.size(); a++) {
             TLRPC.TL_decryptedMessageHolder holder = holes.get(a);
@@ -1294,114 +1275,208 @@ public class SecretChatHelper {
         }
     }
 
+    private static class DecryptionResult {
+        public TLRPC.EncryptedChat chat;
+        public TLRPC.EncryptedMessage message;
+        public long fingerprint;
+        public byte[] key;
+        public TLObject object;
+    }
+
+    //key derivation, AES and TL parsing only, does not touch the chat state so it can run off the stage queue
+    private DecryptionResult decryptMessageObject(TLRPC.EncryptedChat chat, TLRPC.EncryptedMessage message) {
+        DecryptionResult result = new DecryptionResult();
+        result.chat = chat;
+        result.message = message;
+
+        ByteBufferDesc is = BuffersStorage.getInstance().getFreeBuffer(message.bytes.length);
+        is.writeRaw(message.bytes);
+        is.position(0);
+        result.fingerprint = is.readInt64();
+        if (chat.key_fingerprint == result.fingerprint) {
+            result.key = chat.auth_key;
+        } else if (chat.future_key_fingerprint != 0 && chat.future_key_fingerprint == result.fingerprint) {
+            result.key = chat.future_auth_key;
+        }
+
+        if (result.key != null) {
+            byte[] messageKey = is.readData(16);
+            MessageKeyData keyData = Utilities.generateMessageKeyData(result.key, messageKey, false);
+
+            Utilities.aesIgeEncryption(is.buffer, keyData.aesKey, keyData.aesIv, false, false, 24, is.limit() - 24);
+
+            int len = is.readInt32();
+            if (len >= 0 && len <= is.limit() - 28) {
+                byte[] messageKeyFull = Utilities.computeSHA1(is.buffer, 24, Math.min(len + 4 + 24, is.buffer.limit()));
+                if (Utilities.arraysEquals(messageKey, 0, messageKeyFull, messageKeyFull.length - 16)) {
+                    result.object = TLClassStore.Instance().TLdeserialize(is, is.readInt32());
+                }
+            }
+        }
+        BuffersStorage.getInstance().reuseFreeBuffer(is);
+        return result;
+    }
+
     protected ArrayList<TLRPC.Message> decryptMessage(TLRPC.EncryptedMessage message) {
         final TLRPC.EncryptedChat chat = MessagesController.getInstance().getEncryptedChatDB(message.chat_id);
         if (chat == null || chat instanceof TLRPC.TL_encryptedChatDiscarded) {
             return null;
         }
+        return processDecryptionResult(decryptMessageObject(chat, message));
+    }
 
-        ByteBufferDesc is = BuffersStorage.getInstance().getFreeBuffer(message.bytes.length);
-        is.writeRaw(message.bytes);
-        is.position(0);
-        long fingerprint = is.readInt64();
+    //decrypts a difference batch on a few threads, results are still applied one by one in the original order
+    //so seq_in checks, holes and key switches behave exactly like for sequential decryption
+    protected ArrayList<TLRPC.Message> decryptMessages(ArrayList<TLRPC.EncryptedMessage> encryptedMessages) {
+        ArrayList<TLRPC.Message> messages = new ArrayList<>();
+        if (encryptedMessages.size() < MIN_PARALLEL_DECRYPT_COUNT) {
+            for (TLRPC.EncryptedMessage encryptedMessage : encryptedMessages) {
+                ArrayList<TLRPC.Message> decryptedMessages = decryptMessage(encryptedMessage);
+                if (decryptedMessages != null) {
+                    messages.addAll(decryptedMessages);
+                }
+            }
+            return messages;
+        }
+
+        long startTime = System.currentTimeMillis();
+        ArrayList<Future<DecryptionResult>> results = new ArrayList<>(encryptedMessages.size());
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, DECRYPT_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (final TLRPC.EncryptedMessage encryptedMessage : encryptedMessages) {
+            final TLRPC.EncryptedChat chat = MessagesController.getInstance().getEncryptedChatDB(encryptedMessage.chat_id);
+            if (chat == null || chat instanceof TLRPC.TL_encryptedChatDiscarded) {
+                results.add(null);
+                continue;
+            }
+            results.add(executor.submit(new Callable<DecryptionResult>() {
+                @Override
+                public DecryptionResult call() throws Exception {
+                    return decryptMessageObject(chat, encryptedMessage);
+                }
+            }));
+        }
+        for (int a = 0; a < results.size(); a++) {
+            Future<DecryptionResult> future = results.get(a);
+            if (future == null) {
+                continue;
+            }
+            ArrayList<TLRPC.Message> decryptedMessages;
+            try {
+                DecryptionResult result = future.get();
+                result.chat = MessagesController.getInstance().getEncryptedChatDB(result.message.chat_id);
+                if (result.chat == null || result.chat instanceof TLRPC.TL_encryptedChatDiscarded) {
+                    continue;
+                }
+                decryptedMessages = processDecryptionResult(result);
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                decryptedMessages = decryptMessage(encryptedMessages.get(a));
+            }
+            if (decryptedMessages != null) {
+                messages.addAll(decryptedMessages);
+            }
+        }
+        executor.shutdown();
+        FileLog.e("tmessages", "decrypted " + encryptedMessages.size() + " secret messages in " + (System.currentTimeMillis() - startTime) + " ms using " + threads + " threads");
+        return messages;
+    }
+
+    private ArrayList<TLRPC.Message> processDecryptionResult(DecryptionResult result) {
+        final TLRPC.EncryptedChat chat = result.chat;
         byte[] keyToDecrypt = null;
         boolean new_key_used = false;
-        if (chat.key_fingerprint == fingerprint) {
+        if (chat.key_fingerprint == result.fingerprint) {
             keyToDecrypt = chat.auth_key;
-        } else if (chat.future_key_fingerprint != 0 && chat.future_key_fingerprint == fingerprint) {
+        } else if (chat.future_key_fingerprint != 0 && chat.future_key_fingerprint == result.fingerprint) {
             keyToDecrypt = chat.future_auth_key;
             new_key_used = true;
         }
+        if (keyToDecrypt == null) {
+            FileLog.e("tmessages", "fingerprint mismatch " + result.fingerprint);
+            return null;
+        }
+        if (keyToDecrypt != result.key) {
+            //an earlier message of the same batch changed the keys, decrypt again with the current ones
+            result = decryptMessageObject(chat, result.message);
+        }
+        TLObject object = result.object;
+        if (object == null) {
+            return null;
+        }
+        TLRPC.EncryptedMessage message = result.message;
 
-        if (keyToDecrypt != null) {
-            byte[] messageKey = is.readData(16);
-            MessageKeyData keyData = Utilities.generateMessageKeyData(keyToDecrypt, messageKey, false);
-
-            Utilities.aesIgeEncryption(is.buffer, keyData.aesKey, keyData.aesIv, false, false, 24, is.limit() - 24);
-
-            int len = is.readInt32();
-            if (len < 0 || len > is.limit() - 28) {
-                return null;
+        if (!new_key_used && AndroidUtilities.getPeerLayerVersion(chat.layer) >= 20) {
+            chat.key_use_count_in++;
+        }
+        if (object instanceof TLRPC.TL_decryptedMessageLayer) {
+            final TLRPC.TL_decryptedMessageLayer layer = (TLRPC.TL_decryptedMessageLayer)object;
+            if (chat.seq_in == 0 && chat.seq_out == 0) {
+                if (chat.admin_id == UserConfig.getClientUserId()) {
+                    chat.seq_out = 1;
+                } else {
+                    chat.seq_in = 1;
+                }
             }
-            byte[] messageKeyFull = Utilities.computeSHA1(is.buffer, 24, Math.min(len + 4 + 24, is.buffer.limit()));
-            if (!Utilities.arraysEquals(messageKey, 0, messageKeyFull, messageKeyFull.length - 16)) {
+            FileLog.e("tmessages", "current chat in_seq = " + chat.seq_in + " out_seq = " + chat.seq_out);
+            FileLog.e("tmessages", "got message with in_seq = " + layer.in_seq_no + " out_seq = " + layer.out_seq_no);
+            if (layer.out_seq_no < chat.seq_in) {
                 return null;
             }
-
-            TLObject object = TLClassStore.Instance().TLdeserialize(is, is.readInt32());
-            BuffersStorage.getInstance().reuseFreeBuffer(is);
-            if (!new_key_used && AndroidUtilities.getPeerLayerVersion(chat.layer) >= 20) {
-                chat.key_use_count_in++;
-            }
-            if (object instanceof TLRPC.TL_decryptedMessageLayer) {
-                final TLRPC.TL_decryptedMessageLayer layer = (TLRPC.TL_decryptedMessageLayer)object;
-                if (chat.seq_in == 0 && chat.seq_out == 0) {
-                    if (chat.admin_id == UserConfig.getClientUserId()) {
-                        chat.seq_out = 1;
-                    } else {
-                        chat.seq_in = 1;
-                    }
+            if (chat.seq_in != layer.out_seq_no && chat.seq_in != layer.out_seq_no - 2) {
+                FileLog.e("tmessages", "got hole");
+                ArrayList<TLRPC.TL_decryptedMessageHolder> arr = secretHolesQueue.get(chat.id);
+                if (arr == null) {
+                    arr = new ArrayList<>();
+                    secretHolesQueue.put(chat.id, arr);
                 }
-                FileLog.e("tmessages", "current chat in_seq = " + chat.seq_in + " out_seq = " + chat.seq_out);
-                FileLog.e("tmessages", "got message with in_seq = " + layer.in_seq_no + " out_seq = " + layer.out_seq_no);
-                if (layer.out_seq_no < chat.seq_in) {
+                if (arr.size() >= 10) {
+                    secretHolesQueue.remove(chat.id);
+                    final TLRPC.TL_encryptedChatDiscarded newChat = new TLRPC.TL_encryptedChatDiscarded();
+                    newChat.id = chat.id;
+                    newChat.user_id = chat.user_id;
+                    newChat.auth_key = chat.auth_key;
+                    newChat.key_create_date = chat.key_create_date;
+                    newChat.key_use_count_in = chat.key_use_count_in;
+                    newChat.key_use_count_out = chat.key_use_count_out;
+                    newChat.seq_in = chat.seq_in;
+                    newChat.seq_out = chat.seq_out;
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            MessagesController.getInstance().putEncryptedChat(newChat, false);
+                            MessagesStorage.getInstance().updateEncryptedChat(newChat);
+                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.encryptedChatUpdated, newChat);
+                        }
+                    });
+                    declineSecretChat(chat.id);
                     return null;
                 }
-                if (chat.seq_in != layer.out_seq_no && chat.seq_in != layer.out_seq_no - 2) {
-                    FileLog.e("tmessages", "got hole");
-                    ArrayList<TLRPC.TL_decryptedMessageHolder> arr = secretHolesQueue.get(chat.id);
-                    if (arr == null) {
-                        arr = new ArrayList<>();
-                        secretHolesQueue.put(chat.id, arr);
-                    }
-                    if (arr.size() >= 10) {
-                        secretHolesQueue.remove(chat.id);
-                        final TLRPC.TL_encryptedChatDiscarded newChat = new TLRPC.TL_encryptedChatDiscarded();
-                        newChat.id = chat.id;
-                        newChat.user_id = chat.user_id;
-                        newChat.auth_key = chat.auth_key;
-                        newChat.key_create_date = chat.key_create_date;
-                        newChat.key_use_count_in = chat.key_use_count_in;
-                        newChat.key_use_count_out = chat.key_use_count_out;
-                        newChat.seq_in = chat.seq_in;
-                        newChat.seq_out = chat.seq_out;
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                MessagesController.getInstance().putEncryptedChat(newChat, false);
-                                MessagesStorage.getInstance().updateEncryptedChat(newChat);
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.encryptedChatUpdated, newChat);
-                            }
-                        });
-                        declineSecretChat(chat.id);
-                        return null;
-                    }
 
-                    TLRPC.TL_decryptedMessageHolder holder = new TLRPC.TL_decryptedMessageHolder();
-                    holder.layer = layer;
-                    holder.file = message.file;
-                    holder.random_id = message.random_id;
-                    holder.date = message.date;
-                    holder.new_key_used = new_key_used;
-                    arr.add(holder);
-                    return null;
+                TLRPC.TL_decryptedMessageHolder holder = new TLRPC.TL_decryptedMessageHolder();
+                holder.layer = layer;
+                holder.file = message.file;
+                holder.random_id = message.random_id;
+                holder.date = message.date;
+                holder.new_key_used = new_key_used;
+                int index = 0;
+                while (index < arr.size() && arr.get(index).layer.out_seq_no <= layer.out_seq_no) {
+                    index++;
                 }
-                chat.seq_in = layer.out_seq_no;
-                MessagesStorage.getInstance().updateEncryptedChatSeq(chat);
-                object = layer.message;
-            }
-            ArrayList<TLRPC.Message> messages = new ArrayList<>();
-            TLRPC.Message decryptedMessage = processDecryptedObject(chat, message.file, message.date, message.random_id, object, new_key_used);
-            if (decryptedMessage != null) {
-                messages.add(decryptedMessage);
+                arr.add(index, holder);
+                return null;
             }
-            checkSecretHoles(chat, messages);
-            return messages;
-        } else {
-            BuffersStorage.getInstance().reuseFreeBuffer(is);
-            FileLog.e("tmessages", "fingerprint mismatch " + fingerprint);
+            chat.seq_in = layer.out_seq_no;
+            MessagesStorage.getInstance().updateEncryptedChatSeq(chat);
+            object = layer.message;
         }
-        return null;
+        ArrayList<TLRPC.Message> messages = new ArrayList<>();
+        TLRPC.Message decryptedMessage = processDecryptedObject(chat, message.file, message.date, message.random_id, object, new_key_used);
+        if (decryptedMessage != null) {
+            messages.add(decryptedMessage);
+        }
+        checkSecretHoles(chat, messages);
+        return messages;
     }
 
     public void requestNewSecretChatKey(final TLRPC.EncryptedChat encryptedChat) {
@@ -1698,19 +1773,7 @@ public class SecretChatHelper {
                                         dialog.top_message = 0;
                                         dialog.last_message_date = ConnectionsManager.getInstance().getCurrentTime();
                                         MessagesController.getInstance().dialogs_dict.put(dialog.id, dialog);
-                                        MessagesController.getInstance().dialogs.add(dialog);
-                                        Collections.sort(MessagesController.getInstance().dialogs, new Comparator<TLRPC.TL_dialog>() {
-                                            @Override
-                                            public int compare(TLRPC.TL_dialog tl_dialog, TLRPC.TL_dialog tl_dialog2) {
-                                                if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                                                    return 0;
-                                                } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                                                    return 1;
-                                                } else {
-                                                    return -1;
-                                                }
-                                            }
-                                        });
+                                        MessagesController.getInstance().insertDialog(dialog);
                                         MessagesStorage.getInstance().putEncryptedChat(chat, user, dialog);
                                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
                                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.encryptedChatCreated, chat);
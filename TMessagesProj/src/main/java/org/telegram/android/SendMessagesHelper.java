@@ -9,6 +9,8 @@
 package org.telegram.android;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaMetadataRetriever;
@@ -20,11 +22,14 @@ import android.provider.MediaStore;
 import android.webkit.MimeTypeMap;
 import android.widget.Toast;
 
+import org.telegram.messenger.BuffersStorage;
+import org.telegram.messenger.ByteBufferDesc;
 import org.telegram.messenger.ConnectionsManager;
 import org.telegram.messenger.FileLoader;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.R;
 import org.telegram.messenger.RPCRequest;
+import org.telegram.messenger.TLClassStore;
 import org.telegram.messenger.TLObject;
 import org.telegram.messenger.TLRPC;
 import org.telegram.messenger.UserConfig;
@@ -37,13 +42,27 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SendMessagesHelper implements NotificationCenter.NotificationCenterDelegate {
 
+    private static final int PHOTO_PREPARE_THREADS = 3;
+    private static final int PHOTO_PREPARE_MEMORY_PER_THREAD = 48;
+
+    private static final int STAGE_PREPARE = 1;
+    private static final int STAGE_CONVERT = 2;
+    private static final int STAGE_UPLOAD = 3;
+    private static final int STAGE_READY = 4;
+    private static final int STAGE_SEND = 5;
+
     private TLRPC.ChatParticipants currentChatInfo = null;
     private HashMap<String, ArrayList<DelayedMessage>> delayedMessages = new HashMap<>();
     private HashMap<Integer, MessageObject> unsentMessages = new HashMap<>();
     private HashMap<Integer, TLRPC.Message> sendingMessages = new HashMap<>();
+    private HashMap<Long, ArrayList<DelayedMessage>> sendQueues = new HashMap<>();
 
     private class DelayedMessage {
         public TLObject sendRequest;
@@ -57,6 +76,8 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         public String httpLocation;
         public MessageObject obj;
         public TLRPC.EncryptedChat encryptedChat;
+        public TLRPC.InputEncryptedFile encryptedFile;
+        public int stage;
     }
 
     private static volatile SendMessagesHelper Instance = null;
@@ -87,6 +108,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         delayedMessages.clear();
         unsentMessages.clear();
         sendingMessages.clear();
+        sendQueues.clear();
         currentChatInfo = null;
     }
 
@@ -118,18 +140,18 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                             if (file != null && media != null) {
                                 if (message.type == 0) {
                                     media.file = file;
-                                    performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath);
+                                    sendDelayedMessageInOrder(message, null);
                                 } else if (message.type == 1) {
                                     if (media.file == null) {
                                         media.file = file;
                                         if (media.thumb == null && message.location != null) {
                                             performSendDelayedMessage(message);
                                         } else {
-                                            performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath);
+                                            sendDelayedMessageInOrder(message, null);
                                         }
                                     } else {
                                         media.thumb = file;
-                                        performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath);
+                                        sendDelayedMessageInOrder(message, null);
                                     }
                                 } else if (message.type == 2) {
                                     if (media.file == null) {
@@ -137,22 +159,22 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                         if (media.thumb == null && message.location != null) {
                                             performSendDelayedMessage(message);
                                         } else {
-                                            performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath);
+                                            sendDelayedMessageInOrder(message, null);
                                         }
                                     } else {
                                         media.thumb = file;
-                                        performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath);
+                                        sendDelayedMessageInOrder(message, null);
                                     }
                                 } else if (message.type == 3) {
                                     media.file = file;
-                                    performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath);
+                                    sendDelayedMessageInOrder(message, null);
                                 }
                                 arr.remove(a);
                                 a--;
                             } else if (encryptedFile != null && message.sendEncryptedRequest != null) {
                                 message.sendEncryptedRequest.media.key = encryptedFile.key;
                                 message.sendEncryptedRequest.media.iv = encryptedFile.iv;
-                                SecretChatHelper.getInstance().performSendEncryptedRequest(message.sendEncryptedRequest, message.obj.messageOwner, message.encryptedChat, encryptedFile, message.originalPath);
+                                sendDelayedMessageInOrder(message, encryptedFile);
                                 arr.remove(a);
                                 a--;
                             }
@@ -175,6 +197,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                         for (int a = 0; a < arr.size(); a++) {
                             DelayedMessage obj = arr.get(a);
                             if (enc && obj.sendEncryptedRequest != null || !enc && obj.sendRequest != null) {
+                                removeFromSendQueue(obj);
                                 MessagesStorage.getInstance().markMessageAsSendError(obj.obj.getId());
                                 obj.obj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR;
                                 arr.remove(a);
@@ -213,8 +236,9 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             MessageObject messageObject = (MessageObject)args[0];
             String finalPath = (String)args[1];
             long finalSize = (Long)args[2];
+            long availableSize = (Long)args[3];
             boolean isEncrypted = ((int)messageObject.getDialogId()) == 0;
-            FileLoader.getInstance().checkUploadNewDataAvailable(finalPath, isEncrypted, finalSize);
+            FileLoader.getInstance().checkUploadNewDataAvailable(finalPath, isEncrypted, availableSize, finalSize);
             if (finalSize != 0) {
                 ArrayList<DelayedMessage> arr = delayedMessages.get(messageObject.messageOwner.attachPath);
                 if (arr != null) {
@@ -245,6 +269,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                 for (int a = 0; a < arr.size(); a++) {
                     DelayedMessage message = arr.get(a);
                     if (message.obj == messageObject) {
+                        removeFromSendQueue(message);
                         MessagesStorage.getInstance().markMessageAsSendError(message.obj.getId());
                         message.obj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR;
                         arr.remove(a);
@@ -285,6 +310,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                             NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateMessageMedia, message.obj);
                                         } else {
                                             FileLog.e("tmessages", "can't load image " + message.httpLocation + " to file " + cacheFile.toString());
+                                            removeFromSendQueue(message);
                                             MessagesStorage.getInstance().markMessageAsSendError(message.obj.getId());
                                             message.obj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR;
                                             NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageSendError, message.obj.getId());
@@ -340,6 +366,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             ArrayList<DelayedMessage> arr = delayedMessages.get(path);
             if (arr != null) {
                 for (DelayedMessage message : arr) {
+                    removeFromSendQueue(message);
                     MessagesStorage.getInstance().markMessageAsSendError(message.obj.getId());
                     message.obj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR;
                     NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageSendError, message.obj.getId());
@@ -359,6 +386,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                 DelayedMessage message = messages.get(a);
                 if (message.obj.getId() == object.getId()) {
                     messages.remove(a);
+                    removeFromSendQueue(message);
                     MediaController.getInstance().cancelVideoConvert(message.obj);
                     if (messages.size() == 0) {
                         keyToRemvoe = entry.getKey();
@@ -378,6 +406,17 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             }
             stopVideoService(keyToRemvoe);
         }
+        //a message whose upload already finished waits in the send queue until the earlier ones are sent
+        ArrayList<DelayedMessage> queue = sendQueues.get(object.getDialogId());
+        if (queue != null) {
+            for (int a = 0; a < queue.size(); a++) {
+                DelayedMessage message = queue.get(a);
+                if (message.obj.getId() == object.getId()) {
+                    removeFromSendQueue(message);
+                    break;
+                }
+            }
+        }
         ArrayList<Integer> messages = new ArrayList<>();
         messages.add(object.getId());
         MessagesController.getInstance().deleteMessages(messages, null, null);
@@ -1293,7 +1332,94 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         }
     }
 
+    private void setDelayedMessageStage(DelayedMessage message, int stage) {
+        if (message.stage == 0) {
+            long did = message.obj.getDialogId();
+            ArrayList<DelayedMessage> queue = sendQueues.get(did);
+            if (queue == null) {
+                queue = new ArrayList<>();
+                sendQueues.put(did, queue);
+            }
+            queue.add(message);
+        }
+        message.stage = stage;
+    }
+
+    //uploads of a dialog run in parallel, but the final requests are sent in the order the messages were created
+    private void sendDelayedMessageInOrder(DelayedMessage message, TLRPC.InputEncryptedFile encryptedFile) {
+        message.encryptedFile = encryptedFile;
+        if (message.stage == 0) {
+            setDelayedMessageStage(message, STAGE_READY);
+        } else {
+            message.stage = STAGE_READY;
+        }
+        flushSendQueue(message.obj.getDialogId());
+    }
+
+    private void flushSendQueue(long did) {
+        ArrayList<DelayedMessage> queue = sendQueues.get(did);
+        if (queue == null) {
+            return;
+        }
+        ArrayList<DelayedMessage> ready = null;
+        int lastRequestIndex = -1;
+        while (!queue.isEmpty() && queue.get(0).stage == STAGE_READY) {
+            DelayedMessage message = queue.remove(0);
+            message.stage = STAGE_SEND;
+            if (ready == null) {
+                ready = new ArrayList<>();
+            }
+            if (message.sendEncryptedRequest == null) {
+                lastRequestIndex = ready.size();
+            }
+            ready.add(message);
+        }
+        if (queue.isEmpty()) {
+            sendQueues.remove(did);
+        }
+        if (ready == null) {
+            return;
+        }
+        //only the last request runs the request queue, so messages that became ready together go out in one container
+        for (int a = 0; a < ready.size(); a++) {
+            DelayedMessage message = ready.get(a);
+            if (message.sendEncryptedRequest != null) {
+                SecretChatHelper.getInstance().performSendEncryptedRequest(message.sendEncryptedRequest, message.obj.messageOwner, message.encryptedChat, message.encryptedFile, message.originalPath);
+            } else {
+                performSendMessageRequest(message.sendRequest, message.obj.messageOwner, message.originalPath, a == lastRequestIndex);
+            }
+        }
+    }
+
+    private void removeFromSendQueue(DelayedMessage message) {
+        long did = message.obj.getDialogId();
+        ArrayList<DelayedMessage> queue = sendQueues.get(did);
+        if (queue != null && queue.remove(message)) {
+            flushSendQueue(did);
+        }
+    }
+
+    //every prepare task decodes a full size bitmap, so parallel tasks are limited by the heap as well as the cores
+    private static int getPhotoPrepareThreadsCount() {
+        int memoryClass;
+        try {
+            memoryClass = ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+        } catch (Exception e) {
+            memoryClass = (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+        int threads = Math.min(Runtime.getRuntime().availableProcessors() - 1, PHOTO_PREPARE_THREADS);
+        threads = Math.min(threads, memoryClass / PHOTO_PREPARE_MEMORY_PER_THREAD);
+        return Math.max(1, threads);
+    }
+
     private void performSendDelayedMessage(final DelayedMessage message) {
+        if (message.httpLocation != null) {
+            setDelayedMessageStage(message, STAGE_PREPARE);
+        } else if (message.type == 1 && message.videoLocation.videoEditedInfo != null) {
+            setDelayedMessageStage(message, STAGE_CONVERT);
+        } else {
+            setDelayedMessageStage(message, STAGE_UPLOAD);
+        }
         if (message.type == 0) {
             if (message.httpLocation != null) {
                 putToDelayedMessages(message.httpLocation, message);
@@ -1421,6 +1547,10 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
     }
 
     private void performSendMessageRequest(final TLObject req, final TLRPC.Message newMsgObj, final String originalPath) {
+        performSendMessageRequest(req, newMsgObj, originalPath, true);
+    }
+
+    private void performSendMessageRequest(final TLObject req, final TLRPC.Message newMsgObj, final String originalPath, boolean runQueue) {
         putToSendingMessages(newMsgObj);
         ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
             @Override
@@ -1528,7 +1658,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                     }
                 });
             }
-        }), true, RPCRequest.RPCRequestClassGeneric | RPCRequest.RPCRequestClassCanCompress, ConnectionsManager.DEFAULT_DATACENTER_ID);
+        }), true, RPCRequest.RPCRequestClassGeneric | RPCRequest.RPCRequestClassCanCompress, ConnectionsManager.DEFAULT_DATACENTER_ID, runQueue);
     }
 
     private void processSentMessage(TLRPC.Message newMsg, TLRPC.Message sentMessage, String originalPath) {
@@ -1692,6 +1822,43 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         });
     }
 
+    private static TLRPC.TL_photo copyPhoto(TLRPC.TL_photo photo) {
+        if (photo == null) {
+            return null;
+        }
+        TLRPC.TL_photo copy = null;
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(photo.getObjectSize());
+        try {
+            photo.serializeToStream(data);
+            data.position(0);
+            copy = (TLRPC.TL_photo) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        BuffersStorage.getInstance().reuseFreeBuffer(data);
+        if (copy != null) {
+            //every message renames its local files to the server names once it is sent,
+            //so the copy gets its own local files instead of sharing the original ones
+            File cacheDir = FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE);
+            for (TLRPC.PhotoSize size : copy.sizes) {
+                if (size.location == null || size.location.volume_id != Integer.MIN_VALUE) {
+                    continue;
+                }
+                File file = new File(cacheDir, size.location.volume_id + "_" + size.location.local_id + ".jpg");
+                size.location.local_id = UserConfig.getNewLocalId();
+                try {
+                    if (file.exists()) {
+                        Utilities.copyFile(file, new File(cacheDir, size.location.volume_id + "_" + size.location.local_id + ".jpg"));
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+            UserConfig.saveConfig(false);
+        }
+        return copy;
+    }
+
     public TLRPC.TL_photo generatePhotoSizes(String path, Uri imageUri) {
         Bitmap bitmap = ImageLoader.loadBitmap(path, imageUri, AndroidUtilities.getPhotoSize(), AndroidUtilities.getPhotoSize(), true);
         if (bitmap == null && AndroidUtilities.getPhotoSize() != 800) {
@@ -2040,6 +2207,10 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
 
                 ArrayList<String> sendAsDocuments = null;
                 ArrayList<String> sendAsDocumentsOriginal = null;
+                ArrayList<Callable<TLRPC.TL_photo>> photoTasks = new ArrayList<>();
+                ArrayList<Integer> photoTaskIndexes = new ArrayList<>();
+                ArrayList<String> photoOriginalPaths = new ArrayList<>();
+                HashMap<String, Integer> photoTaskByOriginalPath = new HashMap<>();
                 int count = !pathsCopy.isEmpty() ? pathsCopy.size() : urisCopy.size();
                 String path = null;
                 Uri uri = null;
@@ -2086,6 +2257,15 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                         } else {
                             originalPath = null;
                         }
+                        Integer sameTaskIndex = originalPath != null ? photoTaskByOriginalPath.get(originalPath) : null;
+                        if (sameTaskIndex != null) {
+                            photoTaskIndexes.add(sameTaskIndex);
+                            photoOriginalPaths.add(originalPath);
+                            continue;
+                        }
+                        if (originalPath != null) {
+                            photoTaskByOriginalPath.put(originalPath, photoTasks.size());
+                        }
                         TLRPC.TL_photo photo = null;
                         if (!isEncrypted) {
                             photo = (TLRPC.TL_photo) MessagesStorage.getInstance().getSentFile(originalPath, !isEncrypted ? 0 : 3);
@@ -2093,11 +2273,62 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                 photo = (TLRPC.TL_photo) MessagesStorage.getInstance().getSentFile(Utilities.getPath(uri), !isEncrypted ? 0 : 3);
                             }
                         }
-                        if (photo == null) {
-                            photo = SendMessagesHelper.getInstance().generatePhotoSizes(path, uri);
+                        final String pathFinal = path;
+                        final Uri uriFinal = uri;
+                        if (photo != null) {
+                            final TLRPC.TL_photo photoFinal = photo;
+                            photoTasks.add(new Callable<TLRPC.TL_photo>() {
+                                @Override
+                                public TLRPC.TL_photo call() throws Exception {
+                                    return photoFinal;
+                                }
+                            });
+                        } else {
+                            photoTasks.add(new Callable<TLRPC.TL_photo>() {
+                                @Override
+                                public TLRPC.TL_photo call() throws Exception {
+                                    return SendMessagesHelper.getInstance().generatePhotoSizes(pathFinal, uriFinal);
+                                }
+                            });
+                        }
+                        photoTaskIndexes.add(photoTasks.size() - 1);
+                        photoOriginalPaths.add(originalPath);
+                    }
+                }
+                if (!photoTasks.isEmpty()) {
+                    long startTime = System.currentTimeMillis();
+                    ArrayList<Future<TLRPC.TL_photo>> results = new ArrayList<>();
+                    ExecutorService executor = null;
+                    int threads = Math.min(photoTasks.size(), getPhotoPrepareThreadsCount());
+                    if (threads > 1) {
+                        executor = Executors.newFixedThreadPool(threads);
+                        for (Callable<TLRPC.TL_photo> task : photoTasks) {
+                            results.add(executor.submit(task));
+                        }
+                    }
+                    TLRPC.TL_photo[] preparedPhotos = new TLRPC.TL_photo[photoTasks.size()];
+                    boolean[] prepared = new boolean[photoTasks.size()];
+                    for (int a = 0; a < photoTaskIndexes.size(); a++) {
+                        int taskIndex = photoTaskIndexes.get(a);
+                        TLRPC.TL_photo photo = null;
+                        if (prepared[taskIndex]) {
+                            //the same file was picked twice, the copy shares the local file and so the upload
+                            photo = copyPhoto(preparedPhotos[taskIndex]);
+                        } else {
+                            try {
+                                if (executor != null) {
+                                    photo = results.get(taskIndex).get();
+                                } else {
+                                    photo = photoTasks.get(taskIndex).call();
+                                }
+                            } catch (Exception e) {
+                                FileLog.e("tmessages", e);
+                            }
+                            preparedPhotos[taskIndex] = photo;
+                            prepared[taskIndex] = true;
                         }
                         if (photo != null) {
-                            final String originalPathFinal = originalPath;
+                            final String originalPathFinal = photoOriginalPaths.get(a);
                             final TLRPC.TL_photo photoFinal = photo;
                             AndroidUtilities.runOnUIThread(new Runnable() {
                                 @Override
@@ -2107,6 +2338,10 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                             });
                         }
                     }
+                    if (executor != null) {
+                        executor.shutdown();
+                    }
+                    FileLog.e("tmessages", "prepared " + photoTasks.size() + " photos for " + photoTaskIndexes.size() + " messages in " + (System.currentTimeMillis() - startTime) + " ms using " + threads + " threads");
                 }
                 if (sendAsDocuments != null && !sendAsDocuments.isEmpty()) {
                     for (int a = 0; a < sendAsDocuments.size(); a++) {
@@ -2169,8 +2404,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                             }
                             video.size = (int) estimatedSize;
                             video.videoEditedInfo = videoEditedInfo;
-                            String fileName = Integer.MIN_VALUE + "_" + UserConfig.lastLocalId + ".mp4";
-                            UserConfig.lastLocalId--;
+                            String fileName = Integer.MIN_VALUE + "_" + UserConfig.getNewLocalId() + ".mp4";
                             File cacheFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), fileName);
                             UserConfig.saveConfig(false);
                             path = cacheFile.getAbsolutePath();
@@ -45,7 +45,6 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -58,9 +57,10 @@ public class MP4Builder {
     private FileChannel fc = null;
     private long dataOffset = 0;
     private long writedSinceLastMdat = 0;
+    private long committedSize = 0;
     private boolean writeNewMdat = true;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
     private ByteBuffer sizeBuffer = null;
+    private ByteBuffer[] sampleBuffers = new ByteBuffer[2];
 
     public MP4Builder createMovie(Mp4Movie mp4Movie) throws Exception {
         currentMp4Movie = mp4Movie;
@@ -76,6 +76,7 @@ public class MP4Builder {
         mdat = new InterleaveChunkMdat();
 
         sizeBuffer = ByteBuffer.allocateDirect(4);
+        sampleBuffers[0] = sizeBuffer;
 
         return this;
     }
@@ -119,18 +120,29 @@ public class MP4Builder {
             sizeBuffer.position(0);
             sizeBuffer.putInt(bufferInfo.size - 4);
             sizeBuffer.position(0);
-            fc.write(sizeBuffer);
+            sampleBuffers[1] = byteBuf;
+            while (sizeBuffer.hasRemaining() || byteBuf.hasRemaining()) {
+                fc.write(sampleBuffers);
+            }
+            sampleBuffers[1] = null;
+        } else {
+            while (byteBuf.hasRemaining()) {
+                fc.write(byteBuf);
+            }
         }
-
-        fc.write(byteBuf);
         dataOffset += bufferInfo.size;
 
         if (flush) {
             fos.flush();
+            committedSize = dataOffset;
         }
         return flush;
     }
 
+    public long getCommittedSize() {
+        return committedSize;
+    }
+
     public int addTrack(MediaFormat mediaFormat, boolean isAudio) throws Exception {
         return currentMp4Movie.addTrack(mediaFormat, isAudio);
     }
@@ -140,15 +152,6 @@ public class MP4Builder {
             flushCurrentMdat();
         }
 
-        for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
-            for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
-            }
-            track2SampleSizes.put(track, sizes);
-        }
-
         Box moov = createMovieBox(currentMp4Movie);
         moov.getBox(fc);
         fos.flush();
@@ -168,6 +171,7 @@ public class MP4Builder {
         private Container parent;
         private long contentSize = 1024 * 1024 * 1024;
         private long dataOffset = 0;
+        private ByteBuffer headerBuffer = ByteBuffer.allocate(16);
 
         public Container getParent() {
             return parent;
@@ -211,7 +215,8 @@ public class MP4Builder {
         }
 
         public void getBox(WritableByteChannel writableByteChannel) throws IOException {
-            ByteBuffer bb = ByteBuffer.allocate(16);
+            ByteBuffer bb = headerBuffer;
+            bb.clear();
             long size = getSize();
             if (isSmallBox(size)) {
                 IsoTypeWriter.writeUInt32(bb, size);
@@ -413,30 +418,13 @@ public class MP4Builder {
 
     protected void createStsz(Track track, SampleTableBox stbl) {
         SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
+        stsz.setSampleSizes(track.getSampleSizes());
         stbl.addBox(stsz);
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
-        long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
-                lastOffset = -1;
-            }
-            if (lastOffset == -1) {
-                chunksOffsets.add(offset);
-            }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
-        }
-
         StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
-        stco.setChunkOffsets(chunkOffsetsLong);
+        stco.setChunkOffsets(track.getChunkOffsets());
         stbl.addBox(stco);
     }
 }
@@ -27,9 +27,9 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 @TargetApi(16)
@@ -40,7 +40,12 @@ public class Track {
     private String handler;
     private AbstractMediaHeaderBox headerBox = null;
     private SampleDescriptionBox sampleDescriptionBox = null;
-    private LinkedList<Integer> syncSamples = null;
+    private long[] syncSamples = null;
+    private int syncSamplesCount = 0;
+    private long[] sampleSizes = new long[256];
+    private long[] chunkOffsets = new long[64];
+    private int chunkOffsetsCount = 0;
+    private long lastSampleEnd = -1;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
@@ -75,7 +80,7 @@ public class Track {
             width = format.getInteger(MediaFormat.KEY_WIDTH);
             height = format.getInteger(MediaFormat.KEY_HEIGHT);
             timeScale = 90000;
-            syncSamples = new LinkedList<Integer>();
+            syncSamples = new long[64];
             handler = "vide";
             headerBox = new VideoMediaHeaderBox();
             sampleDescriptionBox = new SampleDescriptionBox();
@@ -188,8 +193,23 @@ public class Track {
     public void addSample(long offset, MediaCodec.BufferInfo bufferInfo) {
         boolean isSyncFrame = !isAudio && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
         samples.add(new Sample(offset, bufferInfo.size));
+        int count = samples.size();
+        if (count > sampleSizes.length) {
+            sampleSizes = Arrays.copyOf(sampleSizes, sampleSizes.length * 2);
+        }
+        sampleSizes[count - 1] = bufferInfo.size;
+        if (offset != lastSampleEnd) {
+            if (chunkOffsetsCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+            }
+            chunkOffsets[chunkOffsetsCount++] = offset;
+        }
+        lastSampleEnd = offset + bufferInfo.size;
         if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+            if (syncSamplesCount == syncSamples.length) {
+                syncSamples = Arrays.copyOf(syncSamples, syncSamples.length * 2);
+            }
+            syncSamples[syncSamplesCount++] = count;
         }
 
         long delta = bufferInfo.presentationTimeUs - lastPresentationTimeUs;
@@ -223,14 +243,18 @@ public class Track {
     }
 
     public long[] getSyncSamples() {
-        if (syncSamples == null || syncSamples.isEmpty()) {
+        if (syncSamples == null || syncSamplesCount == 0) {
             return null;
         }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
-        }
-        return returns;
+        return Arrays.copyOf(syncSamples, syncSamplesCount);
+    }
+
+    public long[] getSampleSizes() {
+        return Arrays.copyOf(sampleSizes, samples.size());
+    }
+
+    public long[] getChunkOffsets() {
+        return Arrays.copyOf(chunkOffsets, chunkOffsetsCount);
     }
 
     public int getTimeScale() {
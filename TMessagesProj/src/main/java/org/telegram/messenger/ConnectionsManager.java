@@ -1632,6 +1632,20 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
     }
 
+    private void logSendMessage(TcpConnection connection, Datacenter datacenter, TLRPC.TL_protoMessage message) {
+        if (!FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+            return;
+        }
+        TLObject body = message.body;
+        if (body instanceof TLRPC.initConnection) {
+            body = ((TLRPC.initConnection) body).query;
+        }
+        if (body instanceof TLRPC.invokeWithLayer) {
+            body = ((TLRPC.invokeWithLayer) body).query;
+        }
+        FileLog.d("tmessages", "%d:DC%d> Send message (%d, %d): %s", connection.getSissionId(), datacenter.datacenterId, message.seqno, message.msg_id, body);
+    }
+
     ByteBufferDesc createConnectionData(ArrayList<NetworkMessage> messages, ArrayList<Integer> quickAckId, TcpConnection connection) {
         Datacenter datacenter = datacenterWithId(connection.getDatacenterId());
         if (datacenter.authKey == null) {
@@ -1646,20 +1660,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             NetworkMessage networkMessage = messages.get(0);
             TLRPC.TL_protoMessage message = networkMessage.protoMessage;
 
-            if (BuildVars.DEBUG_VERSION) {
-                if (message.body instanceof TLRPC.invokeWithLayer) {
-                    FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer)message.body).query);
-                } else if (message.body instanceof TLRPC.initConnection) {
-                    TLRPC.initConnection r = (TLRPC.initConnection)message.body;
-                    if (r.query instanceof TLRPC.invokeWithLayer) {
-                        FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer)r.query).query);
-                    } else {
-                        FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + r.query);
-                    }
-                } else {
-                    FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + message.body);
-                }
-            }
+            logSendMessage(connection, datacenter, message);
 
             long msg_time = getTimeFromMsgId(message.msg_id);
             long currentTime = System.currentTimeMillis() + ((long)timeDifference) * 1000;
@@ -1686,20 +1687,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             for (NetworkMessage networkMessage : messages) {
                 TLRPC.TL_protoMessage message = networkMessage.protoMessage;
                 containerMessages.add(message);
-                if (BuildVars.DEBUG_VERSION) {
-                    if (message.body instanceof TLRPC.invokeWithLayer) {
-                        FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer)message.body).query);
-                    } else if (message.body instanceof TLRPC.initConnection) {
-                        TLRPC.initConnection r = (TLRPC.initConnection)message.body;
-                        if (r.query instanceof TLRPC.invokeWithLayer) {
-                            FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer)r.query).query);
-                        } else {
-                            FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + r.query);
-                        }
-                    } else {
-                        FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + message.body);
-                    }
-                }
+                logSendMessage(connection, datacenter, message);
             }
 
             messageContainer.messages = containerMessages;
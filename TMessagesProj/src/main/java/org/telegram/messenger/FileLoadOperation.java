@@ -45,14 +45,17 @@ public class FileLoadOperation {
 
     private File cacheFileTemp;
     private File cacheFileFinal;
-    private File cacheIvTemp;
+    private File cacheStateTemp;
 
     private String ext;
     private RandomAccessFile fileOutputStream;
-    private RandomAccessFile fiv;
+    private RandomAccessFile fstate;
+    private byte[] stateBuffer;
     private File storePath = null;
     private File tempPath = null;
     private boolean isForceRequest = false;
+    private int priority;
+    private volatile boolean paused;
 
     public interface FileLoadOperationDelegate {
         void didFinishLoadingFile(FileLoadOperation operation, File finalFile);
@@ -159,12 +162,58 @@ public class FileLoadOperation {
         return isForceRequest;
     }
 
+    public void setPriority(int value) {
+        priority = value;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    //stops the running requests but keeps the temp file, so a later start() continues from the downloaded part
+    public void pause() {
+        paused = true;
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (state != stateDownloading) {
+                    return;
+                }
+                for (RequestInfo requestInfo : requestInfos) {
+                    if (requestInfo.requestToken != 0) {
+                        ConnectionsManager.getInstance().cancelRpc(requestInfo.requestToken, true, true);
+                    }
+                }
+                requestInfos.clear();
+                cleanup();
+                downloadedBytes = 0;
+                nextDownloadOffset = 0;
+                state = stateIdle;
+            }
+        });
+    }
+
     public void setPaths(File store, File temp) {
         storePath = store;
         tempPath = temp;
     }
 
     public void start() {
+        if (paused) {
+            //runs after the pending pause on the stage queue
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    paused = false;
+                    startInternal();
+                }
+            });
+            return;
+        }
+        startInternal();
+    }
+
+    private void startInternal() {
         if (state != stateIdle) {
             return;
         }
@@ -181,13 +230,11 @@ public class FileLoadOperation {
         Long mediaId = null;
         String fileNameFinal = null;
         String fileNameTemp = null;
-        String fileNameIv = null;
+        String fileNameState = null;
         if (location.volume_id != 0 && location.local_id != 0) {
             fileNameTemp = location.volume_id + "_" + location.local_id + "_temp." + ext;
             fileNameFinal = location.volume_id + "_" + location.local_id + "." + ext;
-            if (key != null) {
-                fileNameIv = location.volume_id + "_" + location.local_id + ".iv";
-            }
+            fileNameState = location.volume_id + "_" + location.local_id + ".pt";
             if (datacenter_id == Integer.MIN_VALUE || location.volume_id == Integer.MIN_VALUE || datacenter_id == 0) {
                 cleanup();
                 Utilities.stageQueue.postRunnable(new Runnable() {
@@ -201,9 +248,7 @@ public class FileLoadOperation {
         } else {
             fileNameTemp = datacenter_id + "_" + location.id + "_temp" + ext;
             fileNameFinal = datacenter_id + "_" + location.id + ext;
-            if (key != null) {
-                fileNameIv = datacenter_id + "_" + location.id + ".iv";
-            }
+            fileNameState = datacenter_id + "_" + location.id + ".pt";
             if (datacenter_id == 0 || location.id == 0) {
                 cleanup();
                 Utilities.stageQueue.postRunnable(new Runnable() {
@@ -225,27 +270,18 @@ public class FileLoadOperation {
 
         if (!cacheFileFinal.exists()) {
             cacheFileTemp = new File(tempPath, fileNameTemp);
-            if (cacheFileTemp.exists()) {
-                downloadedBytes = (int)cacheFileTemp.length();
-                nextDownloadOffset = downloadedBytes = downloadedBytes / 1024 * 1024;
-            }
-            if (fileNameIv != null) {
-                cacheIvTemp = new File(tempPath, fileNameIv);
-                try {
-                    fiv = new RandomAccessFile(cacheIvTemp, "rws");
-                    long len = cacheIvTemp.length();
-                    if (len > 0 && len % 32 == 0) {
-                        fiv.read(iv, 0, 32);
-                    } else {
-                        downloadedBytes = 0;
-                    }
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                    downloadedBytes = 0;
-                }
+            cacheStateTemp = new File(tempPath, fileNameState);
+            try {
+                fstate = new RandomAccessFile(cacheStateTemp, "rws");
+                downloadedBytes = readResumeState();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                downloadedBytes = 0;
             }
+            nextDownloadOffset = downloadedBytes;
             try {
                 fileOutputStream = new RandomAccessFile(cacheFileTemp, "rws");
+                fileOutputStream.setLength(downloadedBytes);
                 if (downloadedBytes != 0) {
                     fileOutputStream.seek(downloadedBytes);
                 }
@@ -285,6 +321,49 @@ public class FileLoadOperation {
         }
     }
 
+    //the state file keeps the length of the temp file part that was fully written and, for encrypted files,
+    //the iv to continue decryption from there; chunks are only written in order, so this prefix is exact
+    //and anything past it (a torn write or chunks that arrived early) is downloaded again
+    private int readResumeState() throws Exception {
+        long tempLength = cacheFileTemp.exists() ? cacheFileTemp.length() : 0;
+        if (tempLength == 0) {
+            return 0;
+        }
+        if (cacheStateTemp.length() >= getStateSize()) {
+            fstate.seek(0);
+            int offset = fstate.readInt();
+            if (offset < 0 || offset > tempLength || offset % downloadChunkSize != 0 && offset != totalBytesCount) {
+                return 0;
+            }
+            if (key != null) {
+                fstate.readFully(iv, 0, 32);
+            }
+            return offset;
+        } else if (key == null) {
+            return (int) (tempLength / downloadChunkSize * downloadChunkSize);
+        }
+        return 0;
+    }
+
+    private void writeResumeState() throws Exception {
+        if (stateBuffer == null) {
+            stateBuffer = new byte[getStateSize()];
+        }
+        stateBuffer[0] = (byte) (downloadedBytes >> 24);
+        stateBuffer[1] = (byte) (downloadedBytes >> 16);
+        stateBuffer[2] = (byte) (downloadedBytes >> 8);
+        stateBuffer[3] = (byte) downloadedBytes;
+        if (key != null) {
+            System.arraycopy(iv, 0, stateBuffer, 4, 32);
+        }
+        fstate.seek(0);
+        fstate.write(stateBuffer);
+    }
+
+    private int getStateSize() {
+        return key != null ? 36 : 4;
+    }
+
     public void cancel() {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
@@ -315,9 +394,9 @@ public class FileLoadOperation {
         }
 
         try {
-            if (fiv != null) {
-                fiv.close();
-                fiv = null;
+            if (fstate != null) {
+                fstate.close();
+                fstate = null;
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -337,8 +416,8 @@ public class FileLoadOperation {
         }
         state = stateFinished;
         cleanup();
-        if (cacheIvTemp != null) {
-            cacheIvTemp.delete();
+        if (cacheStateTemp != null) {
+            cacheStateTemp.delete();
         }
         if (cacheFileTemp != null) {
             if (!cacheFileTemp.renameTo(cacheFileFinal)) {
@@ -371,12 +450,11 @@ public class FileLoadOperation {
                     FileChannel channel = fileOutputStream.getChannel();
                     channel.write(requestInfo.response.bytes.buffer);
                 }
-                if (fiv != null) {
-                    fiv.seek(0);
-                    fiv.write(iv);
-                }
                 int currentBytesSize = requestInfo.response.bytes.limit();
                 downloadedBytes += currentBytesSize;
+                if (fstate != null) {
+                    writeResumeState();
+                }
                 if (totalBytesCount > 0 && state == stateDownloading) {
                     delegate.didChangedLoadProgress(FileLoadOperation.this,  Math.min(1.0f, (float)downloadedBytes / (float)totalBytesCount));
                 }
@@ -478,6 +556,9 @@ public class FileLoadOperation {
             requestInfo.requestToken = ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
                 @Override
                 public void run(TLObject response, TLRPC.TL_error error) {
+                    if (!requestInfos.contains(requestInfo)) {
+                        return;
+                    }
                     requestInfo.response = (TLRPC.TL_upload_file) response;
                     processRequestResult(requestInfo, error);
                 }
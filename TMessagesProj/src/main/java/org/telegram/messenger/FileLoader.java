@@ -34,6 +34,11 @@ public class FileLoader {
     public static final int MEDIA_DIR_DOCUMENT = 3;
     public static final int MEDIA_DIR_CACHE = 4;
 
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_VISIBLE = 2;
+    public static final int PRIORITY_HIGH = 3;
+
     private HashMap<Integer, File> mediaDirs = null;
     private volatile DispatchQueue fileLoaderQueue = new DispatchQueue("fileUploadQueue");
 
@@ -42,6 +47,9 @@ public class FileLoader {
     private LinkedList<FileLoadOperation> loadOperationQueue = new LinkedList<>();
     private LinkedList<FileLoadOperation> audioLoadOperationQueue = new LinkedList<>();
     private LinkedList<FileLoadOperation> photoLoadOperationQueue = new LinkedList<>();
+    private ArrayList<FileLoadOperation> activeLoadOperations = new ArrayList<>();
+    private ArrayList<FileLoadOperation> activeAudioLoadOperations = new ArrayList<>();
+    private ArrayList<FileLoadOperation> activePhotoLoadOperations = new ArrayList<>();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPaths = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPathsEnc = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileLoadOperation> loadOperationPaths = new ConcurrentHashMap<>();
@@ -49,11 +57,10 @@ public class FileLoader {
 
     private FileLoaderDelegate delegate = null;
 
-    private int currentLoadOperationsCount = 0;
-    private int currentAudioLoadOperationsCount = 0;
-    private int currentPhotoLoadOperationsCount = 0;
     private int currentUploadOperationsCount = 0;
     private int currentUploadSmallOperationsCount = 0;
+    private int maxUploadOperationsCount = 1;
+    private int maxUploadSmallOperationsCount = 2;
 
     private static volatile FileLoader Instance = null;
     public static FileLoader getInstance() {
@@ -108,7 +115,7 @@ public class FileLoader {
         });
     }
 
-    public void checkUploadNewDataAvailable(final String location, final boolean encrypted, final long finalSize) {
+    public void checkUploadNewDataAvailable(final String location, final boolean encrypted, final long availableSize, final long finalSize) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -119,7 +126,7 @@ public class FileLoader {
                     operation = uploadOperationPaths.get(location);
                 }
                 if (operation != null) {
-                    operation.checkNewDataAvailable(finalSize);
+                    operation.checkNewDataAvailable(availableSize, finalSize);
                 } else if (finalSize != 0) {
                     uploadSizes.put(location, finalSize);
                 }
@@ -174,7 +181,7 @@ public class FileLoader {
                                 }
                                 if (small) {
                                     currentUploadSmallOperationsCount--;
-                                    if (currentUploadSmallOperationsCount < 1) {
+                                    if (currentUploadSmallOperationsCount < maxUploadSmallOperationsCount) {
                                         FileUploadOperation operation = uploadSmallOperationQueue.poll();
                                         if (operation != null) {
                                             currentUploadSmallOperationsCount++;
@@ -183,7 +190,7 @@ public class FileLoader {
                                     }
                                 } else {
                                     currentUploadOperationsCount--;
-                                    if (currentUploadOperationsCount < 1) {
+                                    if (currentUploadOperationsCount < maxUploadOperationsCount) {
                                         FileUploadOperation operation = uploadOperationQueue.poll();
                                         if (operation != null) {
                                             currentUploadOperationsCount++;
@@ -213,7 +220,7 @@ public class FileLoader {
                                 }
                                 if (small) {
                                     currentUploadSmallOperationsCount--;
-                                    if (currentUploadSmallOperationsCount < 1) {
+                                    if (currentUploadSmallOperationsCount < maxUploadSmallOperationsCount) {
                                         FileUploadOperation operation = uploadSmallOperationQueue.poll();
                                         if (operation != null) {
                                             currentUploadSmallOperationsCount++;
@@ -222,7 +229,7 @@ public class FileLoader {
                                     }
                                 } else {
                                     currentUploadOperationsCount--;
-                                    if (currentUploadOperationsCount < 1) {
+                                    if (currentUploadOperationsCount < maxUploadOperationsCount) {
                                         FileUploadOperation operation = uploadOperationQueue.poll();
                                         if (operation != null) {
                                             currentUploadOperationsCount++;
@@ -242,14 +249,14 @@ public class FileLoader {
                     }
                 };
                 if (small) {
-                    if (currentUploadSmallOperationsCount < 1) {
+                    if (currentUploadSmallOperationsCount < maxUploadSmallOperationsCount) {
                         currentUploadSmallOperationsCount++;
                         operation.start();
                     } else {
                         uploadSmallOperationQueue.add(operation);
                     }
                 } else {
-                    if (currentUploadOperationsCount < 1) {
+                    if (currentUploadOperationsCount < maxUploadOperationsCount) {
                         currentUploadOperationsCount++;
                         operation.start();
                     } else {
@@ -304,11 +311,17 @@ public class FileLoader {
                 if (operation != null) {
                     loadOperationPaths.remove(fileName);
                     if (audio != null) {
-                        audioLoadOperationQueue.remove(operation);
+                        if (!activeAudioLoadOperations.remove(operation)) {
+                            audioLoadOperationQueue.remove(operation);
+                        }
                     } else if (location != null) {
-                        photoLoadOperationQueue.remove(operation);
+                        if (!activePhotoLoadOperations.remove(operation)) {
+                            photoLoadOperationQueue.remove(operation);
+                        }
                     } else {
-                        loadOperationQueue.remove(operation);
+                        if (!activeLoadOperations.remove(operation)) {
+                            loadOperationQueue.remove(operation);
+                        }
                     }
                     operation.cancel();
                 }
@@ -335,26 +348,34 @@ public class FileLoader {
     }
 
     public void loadFile(TLRPC.Video video, boolean force) {
-        loadFile(video, null, null, null, 0, force, video != null && video.key != null);
+        loadFile(video, null, null, null, 0, force ? PRIORITY_HIGH : PRIORITY_LOW, video != null && video.key != null);
     }
 
     public void loadFile(TLRPC.PhotoSize photo, boolean cacheOnly) {
-        loadFile(null, null, null, photo.location, photo.size, false, cacheOnly || (photo != null && photo.size == 0 || photo.location.key != null));
+        loadFile(null, null, null, photo.location, photo.size, PRIORITY_LOW, cacheOnly || (photo != null && photo.size == 0 || photo.location.key != null));
     }
 
     public void loadFile(TLRPC.Document document, boolean force, boolean cacheOnly) {
-        loadFile(null, document, null, null, 0, force, cacheOnly || document != null && document.key != null);
+        loadFile(document, force ? PRIORITY_HIGH : PRIORITY_LOW, cacheOnly);
+    }
+
+    public void loadFile(TLRPC.Document document, int priority, boolean cacheOnly) {
+        loadFile(null, document, null, null, 0, priority, cacheOnly || document != null && document.key != null);
     }
 
     public void loadFile(TLRPC.Audio audio, boolean force) {
-        loadFile(null, null, audio, null, 0, false, audio != null && audio.key != null);
+        loadFile(null, null, audio, null, 0, force ? PRIORITY_HIGH : PRIORITY_LOW, audio != null && audio.key != null);
     }
 
     public void loadFile(TLRPC.FileLocation location, int size, boolean cacheOnly) {
-        loadFile(null, null, null, location, size, true, cacheOnly || size == 0 || (location != null && location.key != null));
+        loadFile(location, size, cacheOnly, PRIORITY_VISIBLE);
+    }
+
+    public void loadFile(TLRPC.FileLocation location, int size, boolean cacheOnly, int priority) {
+        loadFile(null, null, null, location, size, priority, cacheOnly || size == 0 || (location != null && location.key != null));
     }
 
-    private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final int locationSize, final boolean force, final boolean cacheOnly) {
+    private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final int locationSize, final int priority, final boolean cacheOnly) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -375,22 +396,25 @@ public class FileLoader {
                 FileLoadOperation operation = null;
                 operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
-                    if (force) {
-                        LinkedList<FileLoadOperation> downloadQueue = null;
+                    if (priority > operation.getPriority()) {
+                        operation.setPriority(priority);
+                        if (priority >= PRIORITY_VISIBLE) {
+                            operation.setForceRequest(true);
+                        }
+                        LinkedList<FileLoadOperation> downloadQueue;
+                        ArrayList<FileLoadOperation> activeOperations;
                         if (audio != null) {
                             downloadQueue = audioLoadOperationQueue;
+                            activeOperations = activeAudioLoadOperations;
                         } else if (location != null) {
                             downloadQueue = photoLoadOperationQueue;
+                            activeOperations = activePhotoLoadOperations;
                         } else {
                             downloadQueue = loadOperationQueue;
+                            activeOperations = activeLoadOperations;
                         }
-                        if (downloadQueue != null) {
-                            int index = downloadQueue.indexOf(operation);
-                            if (index != -1) {
-                                downloadQueue.remove(index);
-                                downloadQueue.add(0, operation);
-                                operation.setForceRequest(true);
-                            }
+                        if (downloadQueue.remove(operation)) {
+                            enqueueLoadOperation(downloadQueue, activeOperations, operation);
                         }
                     }
                     return;
@@ -399,19 +423,38 @@ public class FileLoader {
                 File tempDir = getDirectory(MEDIA_DIR_CACHE);
                 File storeDir = tempDir;
                 int type = MEDIA_DIR_CACHE;
+                int expectedSize = 0;
 
                 if (video != null) {
-                    operation = new FileLoadOperation(video);
                     type = MEDIA_DIR_VIDEO;
+                    expectedSize = video.size;
                 } else if (location != null) {
-                    operation = new FileLoadOperation(location, locationSize);
                     type = MEDIA_DIR_IMAGE;
+                    expectedSize = locationSize;
                 } else if (document != null) {
-                    operation = new FileLoadOperation(document);
                     type = MEDIA_DIR_DOCUMENT;
+                    expectedSize = document.size;
                 } else if (audio != null) {
-                    operation = new FileLoadOperation(audio);
                     type = MEDIA_DIR_AUDIO;
+                    expectedSize = audio.size;
+                }
+
+                File existingFile = getExistingCopy(fileName, type, expectedSize, cacheOnly);
+                if (existingFile != null) {
+                    if (delegate != null) {
+                        delegate.fileDidLoaded(fileName, existingFile, type);
+                    }
+                    return;
+                }
+
+                if (video != null) {
+                    operation = new FileLoadOperation(video);
+                } else if (location != null) {
+                    operation = new FileLoadOperation(location, locationSize);
+                } else if (document != null) {
+                    operation = new FileLoadOperation(document);
+                } else if (audio != null) {
+                    operation = new FileLoadOperation(audio);
                 }
                 if (!cacheOnly) {
                     storeDir = getDirectory(type);
@@ -427,12 +470,12 @@ public class FileLoader {
                         if (delegate != null) {
                             delegate.fileDidLoaded(finalFileName, finalFile, finalType);
                         }
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, audio, location, finalFileName);
                     }
 
                     @Override
                     public void didFailedLoadingFile(FileLoadOperation operation, int canceled) {
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, audio, location, finalFileName);
                         if (delegate != null) {
                             delegate.fileDidFailedLoad(finalFileName, canceled);
                         }
@@ -445,90 +488,128 @@ public class FileLoader {
                         }
                     }
                 });
-                int maxCount = force ? 3 : 1;
+                operation.setPriority(priority);
+                operation.setForceRequest(priority >= PRIORITY_VISIBLE);
                 if (audio != null) {
-                    if (currentAudioLoadOperationsCount < maxCount) {
-                        currentAudioLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            audioLoadOperationQueue.add(0, operation);
-                        } else {
-                            audioLoadOperationQueue.add(operation);
-                        }
-                    }
+                    enqueueLoadOperation(audioLoadOperationQueue, activeAudioLoadOperations, operation);
                 } else if (location != null) {
-                    if (currentPhotoLoadOperationsCount < maxCount) {
-                        currentPhotoLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            photoLoadOperationQueue.add(0, operation);
-                        } else {
-                            photoLoadOperationQueue.add(operation);
-                        }
-                    }
+                    enqueueLoadOperation(photoLoadOperationQueue, activePhotoLoadOperations, operation);
                 } else {
-                    if (currentLoadOperationsCount < maxCount) {
-                        currentLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            loadOperationQueue.add(0, operation);
-                        } else {
-                            loadOperationQueue.add(operation);
-                        }
-                    }
+                    enqueueLoadOperation(loadOperationQueue, activeLoadOperations, operation);
                 }
             }
         });
     }
 
-    private void checkDownloadQueue(final TLRPC.Audio audio, final TLRPC.FileLocation location, final String arg1) {
+    private int getMaxLoadOperationsCount(int priority) {
+        return priority >= PRIORITY_VISIBLE ? 3 : 1;
+    }
+
+    //queue is kept sorted by priority, operations of the same priority start in the order they were requested
+    private void addToLoadQueue(LinkedList<FileLoadOperation> queue, FileLoadOperation operation) {
+        int priority = operation.getPriority();
+        int index = 0;
+        for (FileLoadOperation queued : queue) {
+            if (queued.getPriority() < priority) {
+                break;
+            }
+            index++;
+        }
+        queue.add(index, operation);
+    }
+
+    private void enqueueLoadOperation(LinkedList<FileLoadOperation> queue, ArrayList<FileLoadOperation> activeOperations, FileLoadOperation operation) {
+        addToLoadQueue(queue, operation);
+        if (activeOperations.size() >= getMaxLoadOperationsCount(operation.getPriority())) {
+            preemptLoadOperation(queue, activeOperations, operation.getPriority());
+        }
+        startNextLoadOperations(queue, activeOperations);
+    }
+
+    //a visible or user requested file takes the slot of a background download, which goes back to the queue
+    //and resumes from its temp file later
+    private void preemptLoadOperation(LinkedList<FileLoadOperation> queue, ArrayList<FileLoadOperation> activeOperations, int priority) {
+        if (priority < PRIORITY_VISIBLE) {
+            return;
+        }
+        FileLoadOperation victim = null;
+        for (FileLoadOperation operation : activeOperations) {
+            if (operation.getPriority() < PRIORITY_VISIBLE && (victim == null || operation.getPriority() < victim.getPriority())) {
+                victim = operation;
+            }
+        }
+        if (victim != null) {
+            activeOperations.remove(victim);
+            victim.pause();
+            addToLoadQueue(queue, victim);
+        }
+    }
+
+    private void startNextLoadOperations(LinkedList<FileLoadOperation> queue, ArrayList<FileLoadOperation> activeOperations) {
+        while (!queue.isEmpty()) {
+            FileLoadOperation operation = queue.getFirst();
+            if (activeOperations.size() >= getMaxLoadOperationsCount(operation.getPriority())) {
+                break;
+            }
+            queue.removeFirst();
+            activeOperations.add(operation);
+            operation.start();
+        }
+    }
+
+    //cached files are named after the server file, so a copy that another message already put into the cache
+    //or media dir is reused instead of downloading the same file again into the other one
+    private File getExistingCopy(String fileName, int type, int expectedSize, boolean cacheOnly) {
+        File cacheDir = getDirectory(MEDIA_DIR_CACHE);
+        File mediaDir = getDirectory(type);
+        if (cacheDir == null || mediaDir == null || cacheDir.equals(mediaDir)) {
+            return null;
+        }
+        File cacheFile = new File(cacheDir, fileName);
+        File mediaFile = new File(mediaDir, fileName);
+        if (cacheOnly) {
+            if (!cacheFile.exists() && isCompleteFile(mediaFile, expectedSize)) {
+                return mediaFile;
+            }
+        } else if (!mediaFile.exists() && isCompleteFile(cacheFile, expectedSize)) {
+            if (cacheFile.renameTo(mediaFile)) {
+                return mediaFile;
+            }
+            return cacheFile;
+        }
+        return null;
+    }
+
+    private boolean isCompleteFile(File file, int expectedSize) {
+        if (!file.exists()) {
+            return false;
+        }
+        long length = file.length();
+        return expectedSize > 0 ? length == expectedSize : length > 0;
+    }
+
+    private void checkDownloadQueue(final FileLoadOperation operation, final TLRPC.Audio audio, final TLRPC.FileLocation location, final String arg1) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                loadOperationPaths.remove(arg1);
-                FileLoadOperation operation = null;
+                if (loadOperationPaths.get(arg1) == operation) {
+                    loadOperationPaths.remove(arg1);
+                }
                 if (audio != null) {
-                    currentAudioLoadOperationsCount--;
-                    if (!audioLoadOperationQueue.isEmpty()) {
-                        operation = audioLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentAudioLoadOperationsCount < maxCount) {
-                            operation = audioLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentAudioLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
+                    if (!activeAudioLoadOperations.remove(operation)) {
+                        audioLoadOperationQueue.remove(operation);
                     }
+                    startNextLoadOperations(audioLoadOperationQueue, activeAudioLoadOperations);
                 } else if (location != null) {
-                    currentPhotoLoadOperationsCount--;
-                    if (!photoLoadOperationQueue.isEmpty()) {
-                        operation = photoLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentPhotoLoadOperationsCount < maxCount) {
-                            operation = photoLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentPhotoLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
+                    if (!activePhotoLoadOperations.remove(operation)) {
+                        photoLoadOperationQueue.remove(operation);
                     }
+                    startNextLoadOperations(photoLoadOperationQueue, activePhotoLoadOperations);
                 } else {
-                    currentLoadOperationsCount--;
-                    if (!loadOperationQueue.isEmpty()) {
-                        operation = loadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentLoadOperationsCount < maxCount) {
-                            operation = loadOperationQueue.poll();
-                            if (operation != null) {
-                                currentLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
+                    if (!activeLoadOperations.remove(operation)) {
+                        loadOperationQueue.remove(operation);
                     }
+                    startNextLoadOperations(loadOperationQueue, activeLoadOperations);
                 }
             }
         });
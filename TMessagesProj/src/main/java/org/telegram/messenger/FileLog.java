@@ -13,17 +13,66 @@ import android.util.Log;
 
 import org.telegram.android.time.FastDateFormat;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileLog {
-    private OutputStreamWriter streamWriter = null;
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_WARNING = 1;
+    public static final int LEVEL_ERROR = 2;
+
+    public static volatile int minLevel = LEVEL_DEBUG;
+
+    private final static long MAX_LOG_FILE_SIZE = 10 * 1024 * 1024;
+    private final static int TAG_RATE_LIMIT = 200;
+    private final static int MAX_PENDING_ENTRIES = 4096;
+    private final static int MAX_LOG_FILES = 3;
+
+    private BufferedWriter streamWriter = null;
+    private volatile boolean enabled = false;
     private FastDateFormat dateFormat = null;
     private DispatchQueue logQueue = null;
+    private File logsDir = null;
     private File currentFile = null;
+    private long currentFileSize = 0;
+
+    private final ConcurrentLinkedQueue<LogEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final AtomicInteger overflowCount = new AtomicInteger(0);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final ConcurrentHashMap<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+
+    private static class LogEntry {
+        public long time;
+        public char level;
+        public String tag;
+        public String message;
+        public Throwable exception;
+    }
+
+    private static class RateLimit {
+        public long second;
+        public int count;
+        public int dropped;
+    }
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            writePendingEntries();
+        }
+    };
 
     private static volatile FileLog Instance = null;
     public static FileLog getInstance() {
@@ -49,134 +98,232 @@ public class FileLog {
             if (sdCard == null) {
                 return;
             }
-            File dir = new File(sdCard.getAbsolutePath() + "/logs");
-            if (dir == null) {
-                return;
+            logsDir = new File(sdCard.getAbsolutePath() + "/logs");
+            logsDir.mkdirs();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        logQueue = new DispatchQueue("logQueue");
+        enabled = openNewFile();
+    }
+
+    //the new file is opened before the old one is closed, so a failed rotation keeps writing to the current file
+    private boolean openNewFile() {
+        BufferedWriter newWriter = null;
+        try {
+            long time = System.currentTimeMillis();
+            File newFile = new File(logsDir, dateFormat.format(time) + ".txt");
+            for (int a = 1; newFile.exists(); a++) {
+                newFile = new File(logsDir, dateFormat.format(time) + "_" + a + ".txt");
             }
-            dir.mkdirs();
-            currentFile = new File(dir, dateFormat.format(System.currentTimeMillis()) + ".txt");
-            if (currentFile == null) {
-                return;
+            newWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newFile)), 16 * 1024);
+            String header = "-----start log " + dateFormat.format(time) + "-----\n";
+            newWriter.write(header);
+            newWriter.flush();
+            if (streamWriter != null) {
+                try {
+                    streamWriter.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
             }
+            streamWriter = newWriter;
+            currentFile = newFile;
+            currentFileSize = header.length();
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.e("tmessages", "can't open new log file", e);
+            if (newWriter != null) {
+                try {
+                    newWriter.close();
+                } catch (Exception e2) {
+                    e2.printStackTrace();
+                }
+            }
+            //try again after another full file instead of on every write
+            currentFileSize = 0;
+            return streamWriter != null;
+        }
+        deleteOldFiles();
+        return true;
+    }
+
+    private void deleteOldFiles() {
+        File[] files = logsDir.listFiles();
+        if (files == null || files.length <= MAX_LOG_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : (l > r ? -1 : 0);
+            }
+        });
+        for (int a = MAX_LOG_FILES; a < files.length; a++) {
+            if (!files[a].equals(currentFile)) {
+                files[a].delete();
+            }
+        }
+    }
+
+    public static boolean isLoggable(int level) {
+        return BuildVars.DEBUG_VERSION && level >= minLevel;
+    }
+
+    //limits what reaches the log file, Logcat output is never dropped
+    private boolean checkRateLimit(String tag) {
+        RateLimit limit = rateLimits.get(tag);
+        if (limit == null) {
+            limit = new RateLimit();
+            RateLimit old = rateLimits.putIfAbsent(tag, limit);
+            if (old != null) {
+                limit = old;
+            }
+        }
+        int dropped = 0;
+        synchronized (limit) {
+            long second = System.currentTimeMillis() / 1000;
+            if (limit.second != second) {
+                limit.second = second;
+                limit.count = 0;
+                dropped = limit.dropped;
+                limit.dropped = 0;
+            }
+            if (limit.count >= TAG_RATE_LIMIT) {
+                limit.dropped++;
+                return false;
+            }
+            limit.count++;
+        }
+        if (dropped != 0) {
+            enqueue('W', tag, dropped + " lines dropped by rate limit", null);
+        }
+        return true;
+    }
+
+    private void enqueue(char level, String tag, String message, Throwable exception) {
+        if (!enabled) {
+            return;
+        }
+        LogEntry entry = new LogEntry();
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.tag = tag;
+        entry.message = message;
+        entry.exception = exception;
+        pendingEntries.add(entry);
+        //if the writer falls behind, the oldest lines are dropped so the queue can't grow without bound
+        if (pendingCount.incrementAndGet() > MAX_PENDING_ENTRIES && pendingEntries.poll() != null) {
+            pendingCount.decrementAndGet();
+            overflowCount.incrementAndGet();
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            logQueue.postRunnable(drainRunnable);
+        }
+    }
+
+    private void writePendingEntries() {
+        if (streamWriter == null) {
+            pendingEntries.clear();
+            pendingCount.set(0);
+            return;
         }
         try {
-            logQueue = new DispatchQueue("logQueue");
-            currentFile.createNewFile();
-            FileOutputStream stream = new FileOutputStream(currentFile);
-            streamWriter = new OutputStreamWriter(stream);
-            streamWriter.write("-----start log " + dateFormat.format(System.currentTimeMillis()) + "-----\n");
+            LogEntry entry;
+            StringBuilder builder = new StringBuilder(256);
+            while ((entry = pendingEntries.poll()) != null) {
+                pendingCount.decrementAndGet();
+                builder.setLength(0);
+                int overflow = overflowCount.getAndSet(0);
+                if (overflow != 0) {
+                    builder.append(dateFormat.format(entry.time)).append(" W/FileLog﹕ ").append(overflow).append(" lines dropped, log queue full\n");
+                }
+                String prefix = dateFormat.format(entry.time) + " " + entry.level + "/" + entry.tag + "﹕ ";
+                builder.append(prefix);
+                if (entry.message != null) {
+                    builder.append(entry.message);
+                } else if (entry.exception != null) {
+                    builder.append(entry.exception);
+                }
+                builder.append('\n');
+                if (entry.exception != null) {
+                    if (entry.message != null) {
+                        builder.append(prefix).append(entry.exception).append('\n');
+                    }
+                    for (StackTraceElement el : entry.exception.getStackTrace()) {
+                        builder.append(prefix).append(el).append('\n');
+                    }
+                }
+                streamWriter.append(builder);
+                currentFileSize += builder.length();
+            }
             streamWriter.flush();
+            if (currentFileSize > MAX_LOG_FILE_SIZE) {
+                openNewFile();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     public static void e(final String tag, final String message, final Throwable exception) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_ERROR)) {
             return;
         }
         Log.e(tag, message, exception);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.write(exception.toString());
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().enqueue('E', tag, message, exception);
     }
 
     public static void e(final String tag, final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_ERROR)) {
             return;
         }
         Log.e(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().enqueue('E', tag, message, null);
     }
 
     public static void e(final String tag, final Throwable e) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_ERROR)) {
             return;
         }
         e.printStackTrace();
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + e + "\n");
-                        StackTraceElement[] stack = e.getStackTrace();
-                        for (StackTraceElement el : stack) {
-                            getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + el + "\n");
-                        }
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        } else {
-            e.printStackTrace();
-        }
+        getInstance().enqueue('E', tag, null, e);
     }
 
     public static void d(final String tag, final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_DEBUG)) {
             return;
         }
         Log.d(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " D/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        FileLog fileLog = getInstance();
+        if (fileLog.checkRateLimit(tag)) {
+            fileLog.enqueue('D', tag, message, null);
+        }
+    }
+
+    //arguments are only formatted when the line passes level filtering
+    public static void d(final String tag, final String format, final Object... args) {
+        if (!isLoggable(LEVEL_DEBUG)) {
+            return;
+        }
+        String message = String.format(Locale.US, format, args);
+        Log.d(tag, message);
+        FileLog fileLog = getInstance();
+        if (fileLog.checkRateLimit(tag)) {
+            fileLog.enqueue('D', tag, message, null);
         }
     }
 
     public static void w(final String tag, final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_WARNING)) {
             return;
         }
         Log.w(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " W/" + tag + ": " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        FileLog fileLog = getInstance();
+        if (fileLog.checkRateLimit(tag)) {
+            fileLog.enqueue('W', tag, message, null);
         }
     }
 
@@ -40,6 +40,7 @@ public class FileUploadOperation {
     private boolean isBigFile = false;
     private String fileKey;
     private int estimatedSize = 0;
+    private long availableSize = 0;
     private int uploadStartTime = 0;
     private FileInputStream stream;
     private MessageDigest mdEnc = null;
@@ -101,10 +102,13 @@ public class FileUploadOperation {
         }
     }
 
-    protected void checkNewDataAvailable(final long finalSize) {
+    protected void checkNewDataAvailable(final long newAvailableSize, final long finalSize) {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
+                if (newAvailableSize > availableSize) {
+                    availableSize = newAvailableSize;
+                }
                 if (estimatedSize != 0 && finalSize != 0) {
                     estimatedSize = 0;
                     totalFileSize = finalSize;
@@ -297,8 +301,7 @@ public class FileUploadOperation {
             }
 
             if (estimatedSize != 0) {
-                long size = stream.getChannel().size();
-                if (currentUploaded + uploadChunkSize > size) {
+                if (currentUploaded + uploadChunkSize > availableSize) {
                     return;
                 }
             }
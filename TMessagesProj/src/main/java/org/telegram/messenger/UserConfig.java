@@ -47,6 +47,15 @@ public class UserConfig {
         return id;
     }
 
+    public static int getNewLocalId() {
+        int id;
+        synchronized (sync) {
+            id = lastLocalId;
+            lastLocalId--;
+        }
+        return id;
+    }
+
     public static void saveConfig(boolean withFile) {
         saveConfig(withFile, null);
     }
@@ -46,6 +46,7 @@ public class ChatAudioCell extends ChatBaseCell implements SeekBar.SeekBarDelega
     private int seekBarY;
 
     private int buttonState = 0;
+    private int playAfterDownloadId = 0;
     private int buttonX;
     private int buttonY;
     private boolean buttonPressed = false;
@@ -180,6 +181,7 @@ public class ChatAudioCell extends ChatBaseCell implements SeekBar.SeekBarDelega
             }
         } else if (buttonState == 2) {
             FileLoader.getInstance().loadFile(currentMessageObject.messageOwner.media.audio, true);
+            playAfterDownloadId = currentMessageObject.getId();
             buttonState = 3;
             invalidate();
         } else if (buttonState == 3) {
@@ -189,6 +191,7 @@ public class ChatAudioCell extends ChatBaseCell implements SeekBar.SeekBarDelega
                 }
             } else {
                 FileLoader.getInstance().cancelLoadFile(currentMessageObject.messageOwner.media.audio);
+                playAfterDownloadId = 0;
                 buttonState = 2;
                 invalidate();
             }
@@ -264,6 +267,10 @@ public class ChatAudioCell extends ChatBaseCell implements SeekBar.SeekBarDelega
     @Override
     public void onSuccessDownload(String fileName) {
         updateButtonState();
+        if (playAfterDownloadId != 0 && currentMessageObject != null && currentMessageObject.getId() == playAfterDownloadId && buttonState == 0) {
+            playAfterDownloadId = 0;
+            didPressedButton();
+        }
     }
 
     @Override
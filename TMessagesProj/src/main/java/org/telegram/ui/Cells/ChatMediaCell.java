@@ -145,6 +145,9 @@ public class ChatMediaCell extends ChatBaseCell implements MediaController.FileD
 
     public void clearGifImage() {
         if (currentMessageObject != null && currentMessageObject.type == 8) {
+            if (gifDrawable != null) {
+                MediaController.getInstance().clearGifDrawable(this);
+            }
             gifDrawable = null;
             buttonState = 2;
             radialProgress.setBackground(getDrawableForCurrentState(), false, false);
@@ -419,7 +422,10 @@ public class ChatMediaCell extends ChatBaseCell implements MediaController.FileD
             cancelLoading = false;
 
             buttonState = -1;
-            gifDrawable = null;
+            if (gifDrawable != null) {
+                MediaController.getInstance().clearGifDrawable(this);
+                gifDrawable = null;
+            }
             currentPhotoObject = null;
             currentPhotoObjectThumb = null;
             currentUrl = null;
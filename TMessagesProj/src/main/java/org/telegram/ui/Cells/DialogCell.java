@@ -32,6 +32,9 @@ import org.telegram.messenger.UserConfig;
 import org.telegram.android.ImageReceiver;
 import org.telegram.ui.Components.AvatarDrawable;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class DialogCell extends BaseCell {
 
     private static TextPaint namePaint;
@@ -54,6 +57,23 @@ public class DialogCell extends BaseCell {
 
     private static Paint linePaint;
 
+    private static class PreviewCacheEntry {
+        private MessageObject message;
+        private String name;
+        private CharSequence text;
+        private StaticLayout layout;
+        private TextPaint layoutPaint;
+        private int layoutWidth;
+    }
+
+    private static final int PREVIEW_CACHE_SIZE = 100;
+    private static final LinkedHashMap<Integer, PreviewCacheEntry> previewCache = new LinkedHashMap<Integer, PreviewCacheEntry>(PREVIEW_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, PreviewCacheEntry> eldest) {
+            return size() > PREVIEW_CACHE_SIZE;
+        }
+    };
+
     private long currentDialogId;
     private boolean isDialogCell;
     private int lastMessageDate;
@@ -230,6 +250,7 @@ public class DialogCell extends BaseCell {
         TextPaint currentNamePaint = namePaint;
         TextPaint currentMessagePaint = messagePaint;
         boolean checkMessage = true;
+        PreviewCacheEntry previewEntry = null;
 
         drawNameGroup = false;
         drawNameBroadcast = false;
@@ -341,9 +362,16 @@ public class DialogCell extends BaseCell {
                             }
                         }
                         checkMessage = false;
-                        if (message.messageOwner.media != null && !(message.messageOwner.media instanceof TLRPC.TL_messageMediaEmpty)) {
+                        boolean isMedia = message.messageOwner.media != null && !(message.messageOwner.media instanceof TLRPC.TL_messageMediaEmpty);
+                        if (isMedia) {
                             currentMessagePaint = messagePrintingPaint;
+                        }
+                        previewEntry = getCachedPreview(message, name);
+                        if (previewEntry != null) {
+                            messageString = previewEntry.text;
+                        } else if (isMedia) {
                             messageString = Emoji.replaceEmoji(Html.fromHtml(String.format("<font color=#4d83b3>%s:</font> <font color=#4d83b3>%s</font>", name, message.messageText)), messagePaint.getFontMetricsInt(), AndroidUtilities.dp(20));
+                            previewEntry = putCachedPreview(message, name, messageString);
                         } else {
                             if (message.messageOwner.message != null) {
                                 String mess = message.messageOwner.message;
@@ -352,6 +380,7 @@ public class DialogCell extends BaseCell {
                                 }
                                 mess = mess.replace("\n", " ");
                                 messageString = Emoji.replaceEmoji(Html.fromHtml(String.format("<font color=#4d83b3>%s:</font> <font color=#808080>%s</font>", name, mess.replace("<", "&lt;").replace(">", "&gt;"))), messagePaint.getFontMetricsInt(), AndroidUtilities.dp(20));
+                                previewEntry = putCachedPreview(message, name, messageString);
                             }
                         }
                     } else {
@@ -365,7 +394,7 @@ public class DialogCell extends BaseCell {
 
             if (unreadCount != 0) {
                 drawCount = true;
-                countString = String.format("%d", unreadCount);
+                countString = String.valueOf(unreadCount);
             } else {
                 drawCount = false;
             }
@@ -533,22 +562,41 @@ public class DialogCell extends BaseCell {
         }
 
         if (checkMessage) {
-            if (messageString == null) {
-                messageString = "";
-            }
-            String mess = messageString.toString();
-            if (mess.length() > 150) {
-                mess = mess.substring(0, 150);
+            boolean canCache = message != null && printingString == null;
+            previewEntry = canCache ? getCachedPreview(message, null) : null;
+            if (previewEntry != null) {
+                messageString = previewEntry.text;
+            } else {
+                if (messageString == null) {
+                    messageString = "";
+                }
+                String mess = messageString.toString();
+                if (mess.length() > 150) {
+                    mess = mess.substring(0, 150);
+                }
+                mess = mess.replace("\n", " ");
+                messageString = Emoji.replaceEmoji(mess, messagePaint.getFontMetricsInt(), AndroidUtilities.dp(17));
+                if (canCache) {
+                    previewEntry = putCachedPreview(message, null, messageString);
+                }
             }
-            mess = mess.replace("\n", " ");
-            messageString = Emoji.replaceEmoji(mess, messagePaint.getFontMetricsInt(), AndroidUtilities.dp(17));
         }
         messageWidth = Math.max(AndroidUtilities.dp(12), messageWidth);
-        CharSequence messageStringFinal = TextUtils.ellipsize(messageString, currentMessagePaint, messageWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
-        try {
-            messageLayout = new StaticLayout(messageStringFinal, currentMessagePaint, messageWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
+        //the ellipsized layout only depends on the cached text, paint and width, so rebinding a recycled cell skips ellipsize and measuring
+        if (previewEntry != null && previewEntry.layout != null && previewEntry.layoutWidth == messageWidth && previewEntry.layoutPaint == currentMessagePaint) {
+            messageLayout = previewEntry.layout;
+        } else {
+            CharSequence messageStringFinal = TextUtils.ellipsize(messageString, currentMessagePaint, messageWidth - AndroidUtilities.dp(12), TextUtils.TruncateAt.END);
+            try {
+                messageLayout = new StaticLayout(messageStringFinal, currentMessagePaint, messageWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+                if (previewEntry != null) {
+                    previewEntry.layout = messageLayout;
+                    previewEntry.layoutPaint = currentMessagePaint;
+                    previewEntry.layoutWidth = messageWidth;
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
         }
 
         double widthpx = 0;
@@ -600,6 +648,23 @@ public class DialogCell extends BaseCell {
         }
     }
 
+    private static PreviewCacheEntry getCachedPreview(MessageObject messageObject, String name) {
+        PreviewCacheEntry entry = previewCache.get(messageObject.getId());
+        if (entry != null && entry.message == messageObject && (name == null ? entry.name == null : name.equals(entry.name))) {
+            return entry;
+        }
+        return null;
+    }
+
+    private static PreviewCacheEntry putCachedPreview(MessageObject messageObject, String name, CharSequence text) {
+        PreviewCacheEntry entry = new PreviewCacheEntry();
+        entry.message = messageObject;
+        entry.name = name;
+        entry.text = text;
+        previewCache.put(messageObject.getId(), entry);
+        return entry;
+    }
+
     public void checkCurrentDialogIndex() {
         TLRPC.TL_dialog dialog = null;
         if (isServerOnly) {
@@ -242,6 +242,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
 
     private final static int id_chat_compose_panel = 1000;
 
+    private final static int PREFETCH_MAX_COUNT = 20;
+
     private static boolean QuoteForward;
 
     AdapterView.OnItemLongClickListener onItemLongClickListener = new AdapterView.OnItemLongClickListener() {
@@ -1325,6 +1327,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             });
             chatListView.setOnScrollListener(new AbsListView.OnScrollListener() {
                 Rect scrollRect = new Rect();
+                int lastFirstVisibleItem = -1;
+                long lastScrollTime = 0;
 
                 @Override
                 public void onScrollStateChanged(AbsListView absListView, int i) {
@@ -1356,6 +1360,17 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                         if (firstVisibleItem + visibleItemCount == totalItemCount && forward_end_reached) {
                             showPagedownButton(false, true);
                         }
+                        if (firstVisibleItem != lastFirstVisibleItem) {
+                            long time = System.currentTimeMillis();
+                            if (lastFirstVisibleItem != -1) {
+                                int delta = firstVisibleItem - lastFirstVisibleItem;
+                                long itemsPerSecond = Math.abs(delta) * 1000L / Math.max(1, time - lastScrollTime);
+                                int count = Math.min(PREFETCH_MAX_COUNT, visibleItemCount + (int) (itemsPerSecond / 2));
+                                prefetchMessages(delta < 0 ? firstVisibleItem - count : firstVisibleItem + visibleItemCount, count);
+                            }
+                            lastFirstVisibleItem = firstVisibleItem;
+                            lastScrollTime = time;
+                        }
                     }
                     for (int a = 0; a < visibleItemCount; a++) {
                         View view = absListView.getChildAt(a);
@@ -2109,6 +2124,25 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
     }
 
+    //list positions run from the oldest loaded message at the top to the newest at the bottom
+    private void prefetchMessages(int position, int count) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        int offset = endReached ? 1 : 0;
+        ArrayList<MessageObject> messageObjects = new ArrayList<>();
+        for (int a = Math.max(0, position); a < position + count; a++) {
+            int index = messages.size() - a - offset;
+            if (index < 0) {
+                break;
+            }
+            if (index < messages.size()) {
+                messageObjects.add(messages.get(index));
+            }
+        }
+        MediaController.getInstance().prefetchMedia(messageObjects, false);
+    }
+
     private void showPagedownButton(boolean show, boolean animated) {
         if (pagedownButton == null) {
             return;
@@ -3446,21 +3480,37 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             updateVisibleRows();
         } else if (id == NotificationCenter.replaceMessagesObjects) {
             if (dialog_id == (long) args[0]) {
-                boolean changed = false;
                 ArrayList<MessageObject> messageObjects = (ArrayList<MessageObject>) args[1];
+                HashMap<Integer, MessageObject> replaced = null;
                 for (MessageObject messageObject : messageObjects) {
                     MessageObject old = messagesDict.get(messageObject.getId());
                     if (old != null) {
                         messagesDict.put(old.getId(), messageObject);
-                        int idx = messages.indexOf(old);
-                        if (idx >= 0) {
-                            messages.set(idx, messageObject);
-                            changed = true;
+                        if (replaced == null) {
+                            replaced = new HashMap<>();
                         }
+                        replaced.put(old.getId(), messageObject);
                     }
                 }
-                if (changed) {
-                    chatAdapter.notifyDataSetChanged();
+                if (replaced != null) {
+                    boolean changed = false;
+                    boolean typeChanged = false;
+                    for (int a = 0; a < messages.size(); a++) {
+                        MessageObject old = messages.get(a);
+                        MessageObject messageObject = replaced.get(old.getId());
+                        if (messageObject != null && messageObject != old) {
+                            if (old.contentType != messageObject.contentType) {
+                                typeChanged = true;
+                            }
+                            messages.set(a, messageObject);
+                            changed = true;
+                        }
+                    }
+                    if (typeChanged) {
+                        chatAdapter.notifyDataSetChanged();
+                    } else if (changed) {
+                        updateReplacedRows(replaced);
+                    }
                 }
             }
         } else if (id == NotificationCenter.notificationsSettingsUpdated) {
@@ -4283,6 +4333,42 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
     }
 
+    private void updateReplacedRows(HashMap<Integer, MessageObject> replaced) {
+        if (chatListView == null) {
+            return;
+        }
+        int count = chatListView.getChildCount();
+        for (int a = 0; a < count; a++) {
+            View view = chatListView.getChildAt(a);
+            MessageObject messageObject = null;
+            if (view instanceof ChatBaseCell) {
+                messageObject = ((ChatBaseCell) view).getMessageObject();
+            } else if (view instanceof ChatActionCell) {
+                messageObject = ((ChatActionCell) view).getMessageObject();
+            }
+            if (messageObject == null) {
+                continue;
+            }
+            MessageObject newMessageObject = replaced.get(messageObject.getId());
+            if (newMessageObject == null || newMessageObject == messageObject) {
+                continue;
+            }
+            if (newMessageObject.contentType != messageObject.contentType) {
+                //the row needs another kind of cell
+                if (chatAdapter != null) {
+                    chatAdapter.notifyDataSetChanged();
+                }
+                return;
+            }
+            if (view instanceof ChatBaseCell) {
+                ((ChatBaseCell) view).setMessageObject(newMessageObject);
+            } else {
+                ((ChatActionCell) view).setMessageObject(newMessageObject);
+            }
+            view.requestLayout();
+        }
+    }
+
     private void updateVisibleRows() {
         if (chatListView == null) {
             return;
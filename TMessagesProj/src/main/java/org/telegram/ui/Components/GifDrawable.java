@@ -34,6 +34,7 @@ import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.MediaController;
 
@@ -59,6 +60,7 @@ public class GifDrawable extends Drawable implements Animatable, MediaController
     private static native long getAllocationByteCount(int gifFileInPtr);
 
     private static final Handler UI_HANDLER = new Handler(Looper.getMainLooper());
+    private static final int FRAME_DROP_THRESHOLD = 16;
 
     private volatile int mGifInfoPtr;
     private volatile boolean mIsRunning = true;
@@ -71,6 +73,11 @@ public class GifDrawable extends Drawable implements Animatable, MediaController
     private boolean mApplyTransformation;
     private final Rect mDstRect = new Rect();
 
+    private int mRenderedFrames;
+    private int mDroppedFrames;
+    private long mRenderTimeNanos;
+    private long mNextFrameTime;
+
     public WeakReference<View> parentView = null;
 
     protected final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
@@ -91,6 +98,7 @@ public class GifDrawable extends Drawable implements Animatable, MediaController
                 parentView.get().invalidate();
             }
             mMetaData[4] = 0;
+            mNextFrameTime = 0;
         }
     };
 
@@ -307,6 +315,18 @@ public class GifDrawable extends Drawable implements Animatable, MediaController
         return getAllocationByteCount(mGifInfoPtr) + mColors.length * 4L;
     }
 
+    public int getRenderedFramesCount() {
+        return mRenderedFrames;
+    }
+
+    public int getDroppedFramesCount() {
+        return mDroppedFrames;
+    }
+
+    public long getRenderTimeNanos() {
+        return mRenderTimeNanos;
+    }
+
     public long getInputSourceByteCount() {
         return mInputSourceLength;
     }
@@ -355,7 +375,19 @@ public class GifDrawable extends Drawable implements Animatable, MediaController
         }
         if (mPaint.getShader() == null) {
             if (mIsRunning) {
+                long now = SystemClock.uptimeMillis();
+                //draws caused by other invalidations before the next frame is due only repeat the current frame
+                boolean frameDue = mNextFrameTime == 0 || now >= mNextFrameTime;
+                if (frameDue && mNextFrameTime != 0 && now - mNextFrameTime > FRAME_DROP_THRESHOLD) {
+                    mDroppedFrames++;
+                }
+                long renderStart = System.nanoTime();
                 renderFrame(mColors, mGifInfoPtr, mMetaData);
+                if (frameDue) {
+                    mRenderTimeNanos += System.nanoTime() - renderStart;
+                    mRenderedFrames++;
+                    mNextFrameTime = mMetaData[4] >= 0 ? now + mMetaData[4] : 0;
+                }
             } else {
                 mMetaData[4] = -1;
             }
@@ -49,6 +49,7 @@ import org.telegram.messenger.FileLog;
 import org.telegram.messenger.RPCRequest;
 import org.telegram.messenger.TLObject;
 import org.telegram.messenger.TLRPC;
+import org.telegram.android.MediaController;
 import org.telegram.android.MessageObject;
 import org.telegram.android.NotificationCenter;
 import org.telegram.messenger.R;
@@ -597,6 +598,8 @@ public class MediaActivity extends BaseFragment implements NotificationCenter.No
                 }
                 if (!added) {
                     sharedMediaData[type].endReached = true;
+                } else if (type == 0) {
+                    MediaController.getInstance().prefetchMedia(arr, true);
                 }
                 sharedMediaData[type].cacheEndReached = !(Boolean) args[3];
                 if (progressView != null) {
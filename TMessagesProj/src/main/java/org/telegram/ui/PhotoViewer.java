@@ -1892,6 +1892,16 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
             setIndexToImage(centerImage, currentIndex);
             setIndexToImage(rightImage, currentIndex + 1);
             setIndexToImage(leftImage, currentIndex - 1);
+            if (!imagesArr.isEmpty()) {
+                ArrayList<MessageObject> messageObjects = new ArrayList<>();
+                if (currentIndex + 2 < imagesArr.size()) {
+                    messageObjects.add(imagesArr.get(currentIndex + 2));
+                }
+                if (currentIndex - 2 >= 0 && currentIndex - 2 < imagesArr.size()) {
+                    messageObjects.add(imagesArr.get(currentIndex - 2));
+                }
+                MediaController.getInstance().prefetchMedia(messageObjects, false);
+            }
         }
     }
 